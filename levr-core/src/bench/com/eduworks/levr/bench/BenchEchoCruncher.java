@@ -0,0 +1,46 @@
+package com.eduworks.levr.bench;
+
+import java.io.InputStream;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.eduworks.resolver.Context;
+import com.eduworks.resolver.Cruncher;
+
+/*
+ * Synthetic cruncher for benchmarks: returns obj unchanged.
+ */
+public class BenchEchoCruncher extends Cruncher
+{
+	@Override
+	public Object resolve(Context c, Map<String, String[]> parameters, Map<String, InputStream> dataStreams) throws JSONException
+	{
+		return getObj(c, parameters, dataStreams);
+	}
+
+	@Override
+	public String getDescription()
+	{
+		return "Returns obj. Benchmark use only.";
+	}
+
+	@Override
+	public String getReturn()
+	{
+		return "Object";
+	}
+
+	@Override
+	public String getAttribution()
+	{
+		return ATTRIB_NONE;
+	}
+
+	@Override
+	public JSONObject getParameters() throws JSONException
+	{
+		return jo("obj", "Object");
+	}
+}
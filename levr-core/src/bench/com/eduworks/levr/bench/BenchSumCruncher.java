@@ -0,0 +1,54 @@
+package com.eduworks.levr.bench;
+
+import java.io.InputStream;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.eduworks.resolver.Context;
+import com.eduworks.resolver.Cruncher;
+
+/*
+ * Synthetic cruncher for benchmarks: sums every non-setting key as a number.
+ */
+public class BenchSumCruncher extends Cruncher
+{
+	@Override
+	public Object resolve(Context c, Map<String, String[]> parameters, Map<String, InputStream> dataStreams) throws JSONException
+	{
+		double sum = 0;
+		for (String key : keySet())
+			if (!isSetting(key))
+			{
+				Double d = getAsDouble(key, c, parameters, dataStreams);
+				if (d != null)
+					sum += d;
+			}
+		return sum;
+	}
+
+	@Override
+	public String getDescription()
+	{
+		return "Sums all parameters. Benchmark use only.";
+	}
+
+	@Override
+	public String getReturn()
+	{
+		return "Number";
+	}
+
+	@Override
+	public String getAttribution()
+	{
+		return ATTRIB_NONE;
+	}
+
+	@Override
+	public JSONObject getParameters() throws JSONException
+	{
+		return jo("<any>", "Number");
+	}
+}
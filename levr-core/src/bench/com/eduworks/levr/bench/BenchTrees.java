@@ -0,0 +1,69 @@
+package com.eduworks.levr.bench;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.eduworks.resolver.Cruncher;
+import com.eduworks.resolver.Resolvable;
+import com.eduworks.resolver.ResolverFactory;
+import com.eduworks.resolver.Scripter;
+
+/**
+ * Builds synthetic cruncher trees through {@link ResolverFactory#create(JSONObject)}.
+ * The benchmark crunchers are registered directly, so no classpath scan is run.
+ */
+public class BenchTrees
+{
+	public static synchronized void register()
+	{
+		if (ResolverFactory.cruncherSpecs == null)
+		{
+			ResolverFactory.cruncherSpecs = new ResolverFactory.SpecMap<Class<? extends Cruncher>>();
+			ResolverFactory.scripterSpecs = new ResolverFactory.SpecMap<Class<? extends Scripter>>();
+		}
+		for (String name : new BenchSumCruncher().getResolverNames())
+			ResolverFactory.cruncherSpecs.put(name, BenchSumCruncher.class);
+		for (String name : new BenchEchoCruncher().getResolverNames())
+			ResolverFactory.cruncherSpecs.put(name, BenchEchoCruncher.class);
+	}
+
+	/** benchSum(obj: benchSum(obj: ... benchSum(obj: 1))) */
+	public static Resolvable chain(int depth) throws JSONException
+	{
+		return ResolverFactory.create(chainJson(depth));
+	}
+
+	/** benchSum(a0: benchSum(obj: 1), ..., aN: benchSum(obj: 1)) */
+	public static Resolvable fanOut(int children) throws JSONException
+	{
+		JSONObject root = fn("benchSum");
+		for (int i = 0; i < children; i++)
+			root.put("a" + i, fn("benchSum").put("obj", 1));
+		return ResolverFactory.create(root);
+	}
+
+	/** benchEcho(obj: "@name") */
+	public static Resolvable parameter(String name) throws JSONException
+	{
+		return ResolverFactory.create(fn("benchEcho").put("obj", "@" + name));
+	}
+
+	/** benchEcho(obj: value, _obj: setting) */
+	public static Resolvable setting(Object value, Object setting) throws JSONException
+	{
+		return ResolverFactory.create(fn("benchEcho").put("obj", value).put("_obj", setting));
+	}
+
+	private static JSONObject chainJson(int depth) throws JSONException
+	{
+		JSONObject jo = fn("benchSum").put("obj", 1);
+		for (int i = 1; i < depth; i++)
+			jo = fn("benchSum").put("obj", jo);
+		return jo;
+	}
+
+	private static JSONObject fn(String function) throws JSONException
+	{
+		return new JSONObject().put("function", function);
+	}
+}
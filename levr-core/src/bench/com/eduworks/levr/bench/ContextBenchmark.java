@@ -0,0 +1,56 @@
+package com.eduworks.levr.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import com.eduworks.resolver.Context;
+
+/**
+ * Context get/put with many threads sharing one context, as crunchers of a
+ * single request do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(8)
+public class ContextBenchmark
+{
+	static final String[] KEYS = { "a", "b", "c", "d", "e", "f", "g", "h" };
+
+	Context context;
+
+	@Setup
+	public void setup()
+	{
+		context = new Context();
+		for (String key : KEYS)
+			context.put(key, key);
+	}
+
+	@Benchmark
+	public Object get()
+	{
+		return context.get(KEYS[(int) (Thread.currentThread().getId() & 7)]);
+	}
+
+	@Benchmark
+	public Object put()
+	{
+		String key = KEYS[(int) (Thread.currentThread().getId() & 7)];
+		return context.put(key, key);
+	}
+
+	@Benchmark
+	public Object copy()
+	{
+		return new Context(context);
+	}
+}
@@ -0,0 +1,83 @@
+package com.eduworks.levr.bench;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.eduworks.lang.EwList;
+import com.eduworks.resolver.Context;
+import com.eduworks.resolver.Cruncher;
+
+/**
+ * Cost of the Cruncher type conversions used by nearly every cruncher.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ConversionBenchmark
+{
+	Cruncher cruncher;
+	Cruncher list;
+	Context context;
+	Map<String, String[]> parameters;
+	Map<String, InputStream> dataStreams;
+
+	Object integer = Integer.valueOf(42);
+	Object whole = Double.valueOf(42);
+	Object fraction = Double.valueOf(42.5);
+	Object string = "1,234.5";
+
+	@Setup
+	public void setup() throws JSONException
+	{
+		BenchTrees.register();
+		cruncher = new BenchEchoCruncher();
+		EwList<Object> values = new EwList<Object>();
+		for (int i = 0; i < 16; i++)
+			values.add(i);
+		list = (Cruncher) BenchTrees.setting(values, values);
+		context = new Context();
+		parameters = new HashMap<String, String[]>();
+		dataStreams = new HashMap<String, InputStream>();
+	}
+
+	@Benchmark
+	public Double integerToDouble()
+	{
+		return cruncher.objectToDouble(integer);
+	}
+
+	@Benchmark
+	public Double stringToDouble()
+	{
+		return cruncher.objectToDouble(string);
+	}
+
+	@Benchmark
+	public String wholeToString()
+	{
+		return cruncher.objectToString(whole);
+	}
+
+	@Benchmark
+	public String fractionToString()
+	{
+		return cruncher.objectToString(fraction);
+	}
+
+	@Benchmark
+	public Object listToJsonArray() throws JSONException
+	{
+		return list.getAsJsonArray("obj", context, parameters, dataStreams);
+	}
+}
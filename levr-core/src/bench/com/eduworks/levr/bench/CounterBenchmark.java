@@ -0,0 +1,94 @@
+package com.eduworks.levr.bench;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import com.eduworks.resolver.Context;
+import com.eduworks.resolver.Cruncher;
+import com.eduworks.resolver.LatencyHistogram;
+import com.eduworks.resolver.Resolvable;
+
+/**
+ * Contention on the timing counters of crunchers shared by many concurrent
+ * requests. atomicLong is the per-child update pattern with shared AtomicLongs,
+ * longAdder and histogram the striped replacements, and shared evaluates one
+ * tree from every thread with instrumentation on and off.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(32)
+public class CounterBenchmark
+{
+	@Param({ "true", "false" })
+	public boolean instrument;
+
+	final AtomicLong atomicNanos = new AtomicLong();
+	final AtomicLong atomicInside = new AtomicLong();
+	final AtomicLong atomicExecutions = new AtomicLong();
+	final AtomicLong atomicParent = new AtomicLong();
+	final LongAdder adderNanos = new LongAdder();
+	final LongAdder adderInside = new LongAdder();
+	final LongAdder adderExecutions = new LongAdder();
+	final LongAdder adderParent = new LongAdder();
+	final LatencyHistogram histogram = new LatencyHistogram();
+
+	Resolvable fanOut;
+	Map<String, String[]> parameters;
+	Map<String, InputStream> dataStreams;
+
+	@Setup
+	public void setup() throws JSONException
+	{
+		Cruncher.instrument = instrument;
+		BenchTrees.register();
+		fanOut = BenchTrees.fanOut(8);
+		parameters = new HashMap<String, String[]>();
+		dataStreams = new HashMap<String, InputStream>();
+	}
+
+	@Benchmark
+	public long atomicLong()
+	{
+		atomicNanos.addAndGet(100);
+		atomicInside.addAndGet(100);
+		atomicExecutions.incrementAndGet();
+		return atomicParent.addAndGet(-100);
+	}
+
+	@Benchmark
+	public void longAdder()
+	{
+		adderNanos.add(100);
+		adderInside.add(100);
+		adderExecutions.increment();
+		adderParent.add(-100);
+	}
+
+	@Benchmark
+	public void histogram()
+	{
+		histogram.record(100);
+	}
+
+	@Benchmark
+	public Object shared() throws JSONException
+	{
+		return fanOut.resolve(new Context(), parameters, dataStreams);
+	}
+}
@@ -0,0 +1,80 @@
+package com.eduworks.levr.bench;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.eduworks.resolver.Context;
+import com.eduworks.resolver.Resolvable;
+
+/**
+ * Cost of Cruncher.get / resolveAChild as trees get deeper and wider, and of
+ * the parameter and setting lookups on a single node.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CruncherBenchmark
+{
+	@Param({ "1", "8", "32" })
+	public int size;
+
+	Resolvable chain;
+	Resolvable fanOut;
+	Resolvable parameter;
+	Resolvable setting;
+	Context context;
+	Map<String, String[]> parameters;
+	Map<String, InputStream> dataStreams;
+
+	@Setup
+	public void setup() throws JSONException
+	{
+		BenchTrees.register();
+		chain = BenchTrees.chain(size);
+		fanOut = BenchTrees.fanOut(size);
+		parameter = BenchTrees.parameter("x");
+		setting = BenchTrees.setting("plain", "setting");
+		context = new Context();
+		parameters = new HashMap<String, String[]>();
+		parameters.put("x", new String[] { "value" });
+		parameters.put("ip", new String[] { "127.0.0.1" });
+		parameters.put("methodType", new String[] { "GET" });
+		dataStreams = new HashMap<String, InputStream>();
+	}
+
+	@Benchmark
+	public Object depth() throws JSONException
+	{
+		return chain.resolve(context, parameters, dataStreams);
+	}
+
+	@Benchmark
+	public Object fanOut() throws JSONException
+	{
+		return fanOut.resolve(context, parameters, dataStreams);
+	}
+
+	@Benchmark
+	public Object parameterReference() throws JSONException
+	{
+		return parameter.resolve(context, parameters, dataStreams);
+	}
+
+	@Benchmark
+	public Object settingShadow() throws JSONException
+	{
+		return setting.resolve(context, parameters, dataStreams);
+	}
+}
@@ -0,0 +1,57 @@
+package com.eduworks.levr.bench;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import com.eduworks.lang.EwMap;
+import com.eduworks.levr.servlet.impl.LevrResolverServlet;
+import com.eduworks.levr.servlet.impl.ServiceRegistry;
+import com.eduworks.resolver.Resolvable;
+
+/**
+ * Web service lookup through LevrResolverServlet.requestStringBackoff, for
+ * exact matches and for requests carrying a url remainder.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(8)
+public class RoutingBenchmark
+{
+	@Setup
+	public void setup() throws JSONException
+	{
+		BenchTrees.register();
+		Map<String, Resolvable> services = new EwMap<String, Resolvable>();
+		Resolvable service = BenchTrees.chain(1);
+		for (int i = 0; i < 400; i++)
+		{
+			services.put("/service" + i, service);
+			services.put("/module" + (i % 20) + "/service" + i, service);
+		}
+		LevrResolverServlet.setRegistry(new ServiceRegistry(services, new EwMap<String, Resolvable>()));
+	}
+
+	@Benchmark
+	public Resolvable exact() throws JSONException
+	{
+		return LevrResolverServlet.requestStringBackoff("/module7/service207", false, new HashMap<String, String[]>());
+	}
+
+	@Benchmark
+	public Resolvable remainder() throws JSONException
+	{
+		return LevrResolverServlet.requestStringBackoff("/service207/some/resource/id", false, new HashMap<String, String[]>());
+	}
+}
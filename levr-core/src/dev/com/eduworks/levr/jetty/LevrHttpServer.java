@@ -17,6 +17,7 @@ import org.eclipse.jetty.servlet.ServletHandler;
 import org.eclipse.jetty.websocket.jsr356.server.deploy.WebSocketServerContainerInitializer;
 
 import com.eduworks.levr.servlet.LevrServlet;
+import com.eduworks.levr.servlet.impl.LevrMetricsServlet;
 import com.eduworks.levr.servlet.impl.LevrResolverServlet;
 import com.eduworks.levr.websocket.LevrResolverWebSocket;
 
@@ -27,7 +28,7 @@ import com.eduworks.levr.websocket.LevrResolverWebSocket;
  * 
  * The root can be found at http://localhost:9722 Servlets are /api/custom (
  * {@link LevrResolverServlet}), /api/help ({@link LevrHelpServlet}), /api/test
- * ({@link LevrTestServlet}), /api/counters ({@link LevrCounterServlet}).
+ * ({@link LevrTestServlet}), /api/counters ({@link LevrCounterServlet}), /api/metrics ({@link LevrMetricsServlet}).
  * 
  * @author Fritz Ray
  * 
@@ -44,7 +45,7 @@ public class LevrHttpServer extends Server
 	 * This holds the servlets that are available to the JETTY server. Note that
 	 * TOMCAT servlets are recorded in the web/WEB-INF/web.xml.
 	 */
-	private final static LevrServlet[] DEF_SERVLETS = new LevrServlet[] { new LevrResolverServlet() };
+	private final static LevrServlet[] DEF_SERVLETS = new LevrServlet[] { new LevrResolverServlet(), new LevrMetricsServlet() };
 
 	protected final static String SOAP_BIND_ADDR = "http://localhost:9723/web/ws";
 
@@ -81,13 +82,14 @@ public class LevrHttpServer extends Server
 
 	/**
 	 * Multiple paths may be specified in {@link LevrServlet#getServletPath()}
-	 * by separating them with whitespace.
+	 * by separating them with whitespace. Servlets are marked async-supported,
+	 * for those that run in async mode (-Dlevr.async=true).
 	 */
 	public static void attach(ServletContextHandler sh, LevrServlet servlet)
 	{
 		for (String servletPath : servlet.getServletPath().split("\\s+"))
 			if (servletPath != null && servletPath.length() > 0)
-				sh.addServlet(servlet.getClass(), servletPath);
+				sh.addServlet(servlet.getClass(), servletPath).setAsyncSupported(true);
 	}
 
 	/**
@@ -0,0 +1,120 @@
+package com.eduworks.levr.servlet;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/*
+ * Runs requests of servlets in async mode off the container's threads, so a few slow services cannot take
+ * every container thread and stall the other endpoints.
+ *
+ * Requests run on virtual threads where the JVM has them, otherwise on a fixed pool of daemon threads. At
+ * most -Dlevr.async.max requests (default 1000) run or wait at a time; beyond that a request is turned away.
+ *
+ * -Dlevr.async=true turns async mode on. -Dlevr.async.threads sets the size of the pool (default four per
+ * core), -Dlevr.async.virtual=false keeps to the pool even where virtual threads exist, and
+ * -Dlevr.async.timeout sets how long a request may run, in milliseconds (default 60000, 0 for no limit).
+ */
+final class AsyncExecutor
+{
+	private static final Logger log = Logger.getLogger(AsyncExecutor.class);
+
+	static final boolean enabled = Boolean.getBoolean("levr.async");
+	static final long timeoutMs = Long.getLong("levr.async.timeout", 60000L);
+
+	private static final Semaphore permits = new Semaphore(Integer.getInteger("levr.async.max", 1000));
+	private static ExecutorService executor = null;
+
+	private AsyncExecutor()
+	{
+	}
+
+	private static synchronized ExecutorService executor()
+	{
+		if (executor == null)
+		{
+			if (!"false".equals(System.getProperty("levr.async.virtual")))
+				executor = virtualThreads();
+			if (executor == null)
+			{
+				int threads = Integer.getInteger("levr.async.threads", 4 * Runtime.getRuntime().availableProcessors());
+				executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+				{
+					final AtomicInteger count = new AtomicInteger(0);
+
+					@Override
+					public Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r, "levr-async-" + count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+				log.debug("Async requests run on " + threads + " threads.");
+			}
+		}
+		return executor;
+	}
+
+	/** @return an executor starting a virtual thread per task, or null if the JVM has none. */
+	private static ExecutorService virtualThreads()
+	{
+		try
+		{
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			ExecutorService e = (ExecutorService) m.invoke(null);
+			log.debug("Async requests run on virtual threads.");
+			return e;
+		}
+		catch (NoSuchMethodException e)
+		{
+			return null;
+		}
+		catch (Exception e)
+		{
+			log.warn("Cannot use virtual threads: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Runs a request.
+	 *
+	 * @return false if too many requests are running already
+	 */
+	static boolean submit(final Runnable request)
+	{
+		if (!permits.tryAcquire())
+			return false;
+		try
+		{
+			executor().execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						request.run();
+					}
+					finally
+					{
+						permits.release();
+					}
+				}
+			});
+			return true;
+		}
+		catch (RejectedExecutionException e)
+		{
+			permits.release();
+			return false;
+		}
+	}
+}
@@ -0,0 +1,451 @@
+package com.eduworks.levr.servlet;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Locale;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.apache.log4j.Logger;
+
+/*
+ * The response as a request running on the AsyncExecutor sees it.
+ *
+ * Once the request is done, because its timeout answered it or the container reported an error, the
+ * container may recycle the response, so from then on whatever the request still sets is dropped and what
+ * it writes fails with an IOException. Writes go through the Gate: it only counts them in and out, so they
+ * block on the client without holding anything the timeout needs. A timeout that comes while a write is in
+ * flight marks the request done at once, but its answer is given by the write when it returns, so a write
+ * is never cut in half by it.
+ */
+final class AsyncResponse extends HttpServletResponseWrapper
+{
+	private static final Logger log = Logger.getLogger(AsyncResponse.class);
+
+	/** How a request is answered: by the request itself, its timeout or an error, whichever comes first. */
+	interface Answer
+	{
+		void answer() throws IOException;
+	}
+
+	/** Decides who answers a request, and keeps the answer from overlapping a write. */
+	static final class Gate
+	{
+		private boolean done = false;
+		private int writing = 0;
+		/** An answer waiting for the writes in flight. */
+		private Answer pending = null;
+
+		synchronized boolean isDone()
+		{
+			return done;
+		}
+
+		/**
+		 * Answers the request, now or, if a write is in flight, when the last
+		 * one returns.
+		 *
+		 * @return false if the request was answered already
+		 */
+		boolean answer(Answer answer)
+		{
+			synchronized (this)
+			{
+				if (done)
+					return false;
+				done = true;
+				if (writing > 0)
+				{
+					pending = answer;
+					return true;
+				}
+			}
+			run(answer);
+			return true;
+		}
+
+		/** Lets a write through, unless the request is answered. Pair with {@link #leave()}. */
+		synchronized void enter() throws IOException
+		{
+			if (done)
+				throw new IOException("Request is already answered.");
+			writing++;
+		}
+
+		void leave()
+		{
+			Answer answer;
+			synchronized (this)
+			{
+				if (--writing > 0 || pending == null)
+					return;
+				answer = pending;
+				pending = null;
+			}
+			run(answer);
+		}
+
+		private static void run(Answer answer)
+		{
+			try
+			{
+				answer.answer();
+			}
+			catch (IOException e)
+			{
+				log.debug("Could not answer request.", e);
+			}
+		}
+	}
+
+	private final Gate gate;
+	private ServletOutputStream out = null;
+	private PrintWriter writer = null;
+
+	AsyncResponse(HttpServletResponse response, Gate gate)
+	{
+		super(response);
+		this.gate = gate;
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException
+	{
+		synchronized (gate)
+		{
+			if (gate.done)
+				throw new IOException("Request is already answered.");
+			if (out == null)
+				out = new Output(super.getOutputStream());
+			return out;
+		}
+	}
+
+	@Override
+	public PrintWriter getWriter() throws IOException
+	{
+		synchronized (gate)
+		{
+			if (gate.done)
+				throw new IOException("Request is already answered.");
+			if (writer == null)
+			{
+				String encoding = getCharacterEncoding();
+				writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), encoding == null ? "ISO-8859-1" : encoding));
+			}
+			return writer;
+		}
+	}
+
+	private final class Output extends ServletOutputStream
+	{
+		private final ServletOutputStream out;
+
+		Output(ServletOutputStream out)
+		{
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			gate.enter();
+			try
+			{
+				out.write(b);
+			}
+			finally
+			{
+				gate.leave();
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			gate.enter();
+			try
+			{
+				out.write(b, off, len);
+			}
+			finally
+			{
+				gate.leave();
+			}
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			gate.enter();
+			try
+			{
+				out.flush();
+			}
+			finally
+			{
+				gate.leave();
+			}
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			gate.enter();
+			try
+			{
+				out.close();
+			}
+			finally
+			{
+				gate.leave();
+			}
+		}
+
+		@Override
+		public boolean isReady()
+		{
+			return !gate.isDone() && out.isReady();
+		}
+
+		@Override
+		public void setWriteListener(WriteListener listener)
+		{
+			out.setWriteListener(listener);
+		}
+	}
+
+	@Override
+	public void sendError(int sc, String msg) throws IOException
+	{
+		gate.enter();
+		try
+		{
+			super.sendError(sc, msg);
+		}
+		finally
+		{
+			gate.leave();
+		}
+	}
+
+	@Override
+	public void sendError(int sc) throws IOException
+	{
+		gate.enter();
+		try
+		{
+			super.sendError(sc);
+		}
+		finally
+		{
+			gate.leave();
+		}
+	}
+
+	@Override
+	public void sendRedirect(String location) throws IOException
+	{
+		gate.enter();
+		try
+		{
+			super.sendRedirect(location);
+		}
+		finally
+		{
+			gate.leave();
+		}
+	}
+
+	@Override
+	public void flushBuffer() throws IOException
+	{
+		gate.enter();
+		try
+		{
+			super.flushBuffer();
+		}
+		finally
+		{
+			gate.leave();
+		}
+	}
+
+	// Setters do no I/O, so they run under the gate's lock: an answer cannot start while they do.
+
+	@Override
+	public void addCookie(Cookie cookie)
+	{
+		synchronized (gate)
+		{
+			if (!gate.done)
+				super.addCookie(cookie);
+		}
+	}
+
+	@Override
+	public void setHeader(String name, String value)
+	{
+		synchronized (gate)
+		{
+			if (!gate.done)
+				super.setHeader(name, value);
+		}
+	}
+
+	@Override
+	public void addHeader(String name, String value)
+	{
+		synchronized (gate)
+		{
+			if (!gate.done)
+				super.addHeader(name, value);
+		}
+	}
+
+	@Override
+	public void setDateHeader(String name, long date)
+	{
+		synchronized (gate)
+		{
+			if (!gate.done)
+				super.setDateHeader(name, date);
+		}
+	}
+
+	@Override
+	public void addDateHeader(String name, long date)
+	{
+		synchronized (gate)
+		{
+			if (!gate.done)
+				super.addDateHeader(name, date);
+		}
+	}
+
+	@Override
+	public void setIntHeader(String name, int value)
+	{
+		synchronized (gate)
+		{
+			if (!gate.done)
+				super.setIntHeader(name, value);
+		}
+	}
+
+	@Override
+	public void addIntHeader(String name, int value)
+	{
+		synchronized (gate)
+		{
+			if (!gate.done)
+				super.addIntHeader(name, value);
+		}
+	}
+
+	@Override
+	public void setStatus(int sc)
+	{
+		synchronized (gate)
+		{
+			if (!gate.done)
+				super.setStatus(sc);
+		}
+	}
+
+	@Override
+	@Deprecated
+	public void setStatus(int sc, String sm)
+	{
+		synchronized (gate)
+		{
+			if (!gate.done)
+				super.setStatus(sc, sm);
+		}
+	}
+
+	@Override
+	public void setContentType(String type)
+	{
+		synchronized (gate)
+		{
+			if (!gate.done)
+				super.setContentType(type);
+		}
+	}
+
+	@Override
+	public void setContentLength(int len)
+	{
+		synchronized (gate)
+		{
+			if (!gate.done)
+				super.setContentLength(len);
+		}
+	}
+
+	@Override
+	public void setContentLengthLong(long len)
+	{
+		synchronized (gate)
+		{
+			if (!gate.done)
+				super.setContentLengthLong(len);
+		}
+	}
+
+	@Override
+	public void setCharacterEncoding(String charset)
+	{
+		synchronized (gate)
+		{
+			if (!gate.done)
+				super.setCharacterEncoding(charset);
+		}
+	}
+
+	@Override
+	public void setLocale(Locale loc)
+	{
+		synchronized (gate)
+		{
+			if (!gate.done)
+				super.setLocale(loc);
+		}
+	}
+
+	@Override
+	public void setBufferSize(int size)
+	{
+		synchronized (gate)
+		{
+			if (!gate.done)
+				super.setBufferSize(size);
+		}
+	}
+
+	@Override
+	public void reset()
+	{
+		synchronized (gate)
+		{
+			if (!gate.done)
+				super.reset();
+		}
+	}
+
+	@Override
+	public void resetBuffer()
+	{
+		synchronized (gate)
+		{
+			if (!gate.done)
+				super.resetBuffer();
+		}
+	}
+}
@@ -4,6 +4,9 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.Map;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
@@ -13,6 +16,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.log4j.Logger;
 
 import com.eduworks.levr.servlet.impl.LevrResolverServlet;
+import com.eduworks.resolver.Context;
 
 public abstract class LevrServlet extends HttpServlet
 {
@@ -22,6 +26,12 @@ public abstract class LevrServlet extends HttpServlet
 
 	protected static final String HTTP_GET = "GET";
 
+	/** Request attribute holding the request's {@link Context}, so a timeout can abort it. */
+	protected static final String CONTEXT_ATTRIBUTE = "levr.context";
+
+	/** True if servlets that support it run requests off the container's threads (-Dlevr.async=true). */
+	protected static final boolean ASYNC = AsyncExecutor.enabled;
+
 	private static final long serialVersionUID = 1L;
 
 	protected static Logger log = Logger.getLogger(LevrResolverServlet.class);
@@ -32,6 +42,15 @@ public abstract class LevrServlet extends HttpServlet
 
 	public abstract String getServletPath();
 
+	/**
+	 * @return true to run requests on the {@link AsyncExecutor} where the
+	 *         container supports async requests
+	 */
+	protected boolean isAsync()
+	{
+		return false;
+	}
+
 	/* OVERRIDDEN METHODS */
 
 	/**
@@ -41,6 +60,11 @@ public abstract class LevrServlet extends HttpServlet
 	@Override
 	public void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
 	{
+		if (isAsync() && request.isAsyncSupported())
+		{
+			goAsync(HTTP_GET, request, response);
+			return;
+		}
 		ServletOutputStream outputStream = response.getOutputStream();
 		try
 		{
@@ -63,6 +87,11 @@ public abstract class LevrServlet extends HttpServlet
 	@Override
 	public void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
 	{
+		if (isAsync() && request.isAsyncSupported())
+		{
+			goAsync(HTTP_POST, request, response);
+			return;
+		}
 		ServletOutputStream outputStream = response.getOutputStream();
 		try
 		{
@@ -101,6 +130,11 @@ public abstract class LevrServlet extends HttpServlet
 	@Override
 	public void doDelete(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
 	{
+		if (isAsync() && request.isAsyncSupported())
+		{
+			goAsync(HTTP_DELETE, request, response);
+			return;
+		}
 		ServletOutputStream outputStream = response.getOutputStream();
 		try
 		{
@@ -219,6 +253,132 @@ public abstract class LevrServlet extends HttpServlet
 			return defValue;
 	}
 
+	/**
+	 * Hands a request to the {@link AsyncExecutor}. The container thread
+	 * returns at once. A request that runs past the timeout gets a 503, and
+	 * its Context is cancelled. The request only gets to the response through
+	 * an {@link AsyncResponse}, so it cannot write to it once it is answered.
+	 */
+	private void goAsync(final String methodType, final HttpServletRequest request, final HttpServletResponse response) throws IOException
+	{
+		final AsyncContext async = request.startAsync();
+		final AsyncResponse.Gate gate = new AsyncResponse.Gate();
+		async.setTimeout(AsyncExecutor.timeoutMs);
+		async.addListener(new AsyncListener()
+		{
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException
+			{
+				Object c = request.getAttribute(CONTEXT_ATTRIBUTE);
+				if (c instanceof Context)
+					((Context) c).cancel();
+				gate.answer(new AsyncResponse.Answer()
+				{
+					@Override
+					public void answer() throws IOException
+					{
+						try
+						{
+							if (!response.isCommitted())
+								response.sendError(503, "Request timed out.");
+						}
+						finally
+						{
+							async.complete();
+						}
+					}
+				});
+			}
+
+			@Override
+			public void onError(AsyncEvent event) throws IOException
+			{
+				Object c = request.getAttribute(CONTEXT_ATTRIBUTE);
+				if (c instanceof Context)
+					((Context) c).cancel();
+				gate.answer(new AsyncResponse.Answer()
+				{
+					@Override
+					public void answer()
+					{
+						async.complete();
+					}
+				});
+			}
+
+			@Override
+			public void onComplete(AsyncEvent event) throws IOException
+			{
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) throws IOException
+			{
+			}
+		});
+		boolean accepted = AsyncExecutor.submit(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				AsyncResponse guarded = new AsyncResponse(response, gate);
+				ServletOutputStream outputStream = null;
+				try
+				{
+					outputStream = guarded.getOutputStream();
+					go(methodType, request, guarded, outputStream);
+				}
+				catch (Throwable e)
+				{
+					if (!gate.isDone())
+						try
+						{
+							handleException(guarded, outputStream, e);
+						}
+						catch (IOException e1)
+						{
+							log.debug("Could not report error.", e1);
+						}
+				}
+				finally
+				{
+					// Unless the timeout answered already.
+					gate.answer(new AsyncResponse.Answer()
+					{
+						@Override
+						public void answer() throws IOException
+						{
+							try
+							{
+								closeOutputStream(request, response.getOutputStream());
+							}
+							finally
+							{
+								async.complete();
+							}
+						}
+					});
+				}
+			}
+		});
+		if (!accepted)
+			gate.answer(new AsyncResponse.Answer()
+			{
+				@Override
+				public void answer() throws IOException
+				{
+					try
+					{
+						response.sendError(503, "Too many requests.");
+					}
+					finally
+					{
+						async.complete();
+					}
+				}
+			});
+	}
+
 	private void closeOutputStream(HttpServletRequest request, ServletOutputStream outputStream) throws IOException
 	{
 		outputStream.close();
@@ -231,7 +391,8 @@ public abstract class LevrServlet extends HttpServlet
 		else
 			response.setStatus(500);
 		e.printStackTrace();
-		if (outputStream != null)
+		// Plain text appended to a compressed body would corrupt it.
+		if (outputStream != null && response.getHeader("Content-Encoding") == null)
 		{
 			outputStream.println(e.getMessage());
 			outputStream.flush();
@@ -0,0 +1,251 @@
+package com.eduworks.levr.servlet.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/*
+ * Compresses a response with gzip or deflate, whichever the client prefers in its Accept-Encoding.
+ *
+ * The first bytes are held back until there are enough of them to be worth compressing; a response that
+ * ends, or is flushed, before that goes out as it is. Responses whose content type is already compressed
+ * (images, audio, video, archives, PDF), responses of services with "_compress": false and responses
+ * committed before the decision are not compressed either. Deflaters come from a pool, so a response does
+ * not allocate native zlib state.
+ *
+ * -Dlevr.compress=false turns compression off. -Dlevr.compress.min sets the smallest response compressed
+ * (bytes, default 1024) and -Dlevr.compress.level the deflate level.
+ */
+final class CompressingOutputStream extends OutputStream
+{
+	/** Request attribute that, set to Boolean.TRUE, keeps the response uncompressed. */
+	static final String DISABLE = "levr.compress.disable";
+
+	private static final boolean enabled = !"false".equals(System.getProperty("levr.compress"));
+	private static final int threshold = Math.max(1, Integer.getInteger("levr.compress.min", 1024));
+	private static final int level = Integer.getInteger("levr.compress.level", Deflater.DEFAULT_COMPRESSION);
+	private static final ArrayBlockingQueue<Deflater> gzipPool = new ArrayBlockingQueue<Deflater>(64);
+	private static final ArrayBlockingQueue<Deflater> deflatePool = new ArrayBlockingQueue<Deflater>(64);
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	private static final int UNDECIDED = 0;
+	private static final int PLAIN = 1;
+	private static final int COMPRESSED = 2;
+	private static final int FINISHED = 3;
+
+	private final HttpServletRequest request;
+	private final HttpServletResponse response;
+	private final OutputStream out;
+	private final String encoding;
+	private int state;
+	private byte[] head;
+	private int headCount = 0;
+	private Deflater deflater = null;
+	private DeflaterOutputStream deflating = null;
+	private CRC32 crc = null;
+
+	CompressingOutputStream(HttpServletRequest request, HttpServletResponse response, OutputStream out)
+	{
+		this.request = request;
+		this.response = response;
+		this.out = out;
+		this.encoding = enabled ? negotiate(request.getHeader("Accept-Encoding")) : null;
+		if (encoding != null)
+		{
+			response.addHeader("Vary", "Accept-Encoding");
+			state = UNDECIDED;
+			head = new byte[threshold];
+		}
+		else
+			state = PLAIN;
+	}
+
+	/** @return "gzip", "deflate" or null, by the q-values of an Accept-Encoding header. */
+	static String negotiate(String acceptEncoding)
+	{
+		if (acceptEncoding == null)
+			return null;
+		double gzip = -1;
+		double deflate = -1;
+		double any = -1;
+		for (String part : acceptEncoding.split(","))
+		{
+			String[] params = part.split(";");
+			String coding = params[0].trim().toLowerCase();
+			double q = 1;
+			for (int i = 1; i < params.length; i++)
+			{
+				String param = params[i].trim();
+				if (param.startsWith("q="))
+					try
+					{
+						q = Double.parseDouble(param.substring(2).trim());
+					}
+					catch (NumberFormatException e)
+					{
+						q = 0;
+					}
+			}
+			if (coding.equals("gzip") || coding.equals("x-gzip"))
+				gzip = q;
+			else if (coding.equals("deflate"))
+				deflate = q;
+			else if (coding.equals("*"))
+				any = q;
+		}
+		if (gzip < 0)
+			gzip = any;
+		if (deflate < 0)
+			deflate = any;
+		if (gzip > 0 && gzip >= deflate)
+			return "gzip";
+		if (deflate > 0)
+			return "deflate";
+		return null;
+	}
+
+	/** @return true if a content type is one that compresses no further. */
+	static boolean isCompressed(String contentType)
+	{
+		if (contentType == null)
+			return false;
+		String type = contentType.toLowerCase();
+		if (type.startsWith("image/"))
+			return !type.startsWith("image/svg");
+		return type.startsWith("audio/") || type.startsWith("video/") || type.startsWith("application/zip")
+				|| type.startsWith("application/gzip") || type.startsWith("application/x-gzip") || type.startsWith("application/x-bzip2")
+				|| type.startsWith("application/x-7z") || type.startsWith("application/x-rar") || type.startsWith("application/pdf")
+				|| type.startsWith("application/vnd.openxmlformats");
+	}
+
+	private boolean shouldCompress()
+	{
+		return !response.isCommitted() && !Boolean.TRUE.equals(request.getAttribute(DISABLE)) && !isCompressed(response.getContentType());
+	}
+
+	private void decide(boolean large) throws IOException
+	{
+		byte[] held = head;
+		head = null;
+		if (large && shouldCompress())
+		{
+			response.setHeader("Content-Encoding", encoding);
+			boolean gzip = "gzip".equals(encoding);
+			deflater = (gzip ? gzipPool : deflatePool).poll();
+			if (deflater == null)
+				deflater = new Deflater(level, gzip);
+			if (gzip)
+			{
+				out.write(GZIP_HEADER);
+				crc = new CRC32();
+			}
+			deflating = new DeflaterOutputStream(out, deflater, 8192);
+			state = COMPRESSED;
+		}
+		else
+			state = PLAIN;
+		if (headCount > 0)
+			write(held, 0, headCount);
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		switch (state)
+		{
+		case UNDECIDED:
+			if (headCount + len < threshold)
+			{
+				System.arraycopy(b, off, head, headCount, len);
+				headCount += len;
+				return;
+			}
+			decide(true);
+			write(b, off, len);
+			return;
+		case PLAIN:
+			out.write(b, off, len);
+			return;
+		case COMPRESSED:
+			if (crc != null)
+				crc.update(b, off, len);
+			deflating.write(b, off, len);
+			return;
+		default:
+			throw new IOException("Response already finished.");
+		}
+	}
+
+	@Override
+	public void flush() throws IOException
+	{
+		if (state == UNDECIDED)
+			decide(false);
+		if (state == COMPRESSED)
+			deflating.flush();
+		out.flush();
+	}
+
+	/** Writes out what is left and the gzip trailer, leaving the underlying stream open. */
+	void finish() throws IOException
+	{
+		if (state == UNDECIDED)
+			decide(false);
+		if (state != COMPRESSED)
+		{
+			state = FINISHED;
+			return;
+		}
+		state = FINISHED;
+		try
+		{
+			deflating.finish();
+			if (crc != null)
+			{
+				writeInt((int) crc.getValue());
+				writeInt((int) deflater.getBytesRead());
+			}
+			out.flush();
+		}
+		finally
+		{
+			deflater.reset();
+			if (!(crc != null ? gzipPool : deflatePool).offer(deflater))
+				deflater.end();
+			deflater = null;
+		}
+	}
+
+	private void writeInt(int i) throws IOException
+	{
+		out.write(i & 0xff);
+		out.write((i >> 8) & 0xff);
+		out.write((i >> 16) & 0xff);
+		out.write((i >> 24) & 0xff);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			finish();
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package com.eduworks.levr.servlet.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.eduworks.lang.EwMap;
+import com.eduworks.resolver.Resolvable;
+import com.eduworks.resolver.ResolverFactory;
+import com.eduworks.resolver.ResolverInterner;
+import com.eduworks.resolver.lang.LevrResolverParser;
+import com.eduworks.resolver.lang.LevrResolverV2Parser;
+import com.eduworks.util.Tuple;
+
+/*
+ * Loads script files into ServiceRegistry Sources.
+ *
+ * Files are independent until they are bound into the registry, so they are parsed and built into crunchers
+ * on all cores. The results are then interned and added one file at a time, in path order, so that sharing
+ * of identical crunchers and the winner of a duplicate name do not depend on which thread finished first.
+ * Files whose content has not changed since a previous run come from the ScriptCache instead of the parser.
+ *
+ * The number of loader threads is set with -Dlevr.load.threads (default: one per core).
+ */
+final class ConfigLoader
+{
+	private static final Logger log = Logger.getLogger(ConfigLoader.class);
+	private static final int threads = Integer.getInteger("levr.load.threads", Runtime.getRuntime().availableProcessors());
+
+	private static final Comparator<File> BY_PATH = new Comparator<File>()
+	{
+		@Override
+		public int compare(File a, File b)
+		{
+			return a.getPath().compareTo(b.getPath());
+		}
+	};
+
+	private ConfigLoader()
+	{
+	}
+
+	/**
+	 * Adds the script files under codeFile to builder, reusing what previous
+	 * loaded from files that have not changed since.
+	 *
+	 * @return the Sources that were (re)loaded, in path order
+	 */
+	static List<ServiceRegistry.Source> load(File codeFile, ServiceRegistry previous, ServiceRegistry.Builder builder) throws JSONException
+	{
+		List<File> changed = new ArrayList<File>();
+		collect(codeFile, previous, builder, changed);
+		Collections.sort(changed, BY_PATH);
+
+		List<ServiceRegistry.Source> loaded = loadFiles(changed);
+		ResolverInterner interner = new ResolverInterner();
+		for (ServiceRegistry.Source source : loaded)
+		{
+			intern(source.services, interner);
+			intern(source.functions, interner);
+			builder.files.put(source.file.getPath(), source);
+		}
+		log.debug("Shared " + interner.getMerged() + " identical crunchers.");
+		return loaded;
+	}
+
+	private static void collect(File codeFile, ServiceRegistry previous, ServiceRegistry.Builder builder, List<File> changed)
+	{
+		if (codeFile.canRead())
+		{
+			if (codeFile.isDirectory())
+			{
+				File[] files = codeFile.listFiles();
+				if (files != null)
+					for (File f2 : files)
+						collect(f2, previous, builder, changed);
+			}
+			else if (codeFile.isFile() && ConfigWatcher.isScript(codeFile.getName()))
+			{
+				ServiceRegistry.Source source = previous == null ? null : previous.files.get(codeFile.getPath());
+				if (source == null || !source.isCurrent(codeFile))
+					changed.add(codeFile);
+				else
+					builder.files.put(codeFile.getPath(), source);
+			}
+		}
+	}
+
+	private static List<ServiceRegistry.Source> loadFiles(List<File> files) throws JSONException
+	{
+		List<ServiceRegistry.Source> loaded = new ArrayList<ServiceRegistry.Source>();
+		if (files.size() < 2 || threads < 2)
+		{
+			for (File file : files)
+				loaded.add(ScriptCache.load(file));
+			return loaded;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, files.size()), new ThreadFactory()
+		{
+			final AtomicInteger count = new AtomicInteger(0);
+
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "levr-config-loader-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try
+		{
+			List<Future<ServiceRegistry.Source>> futures = new ArrayList<Future<ServiceRegistry.Source>>();
+			for (final File file : files)
+				futures.add(executor.submit(new Callable<ServiceRegistry.Source>()
+				{
+					@Override
+					public ServiceRegistry.Source call() throws Exception
+					{
+						return ScriptCache.load(file);
+					}
+				}));
+			for (Future<ServiceRegistry.Source> future : futures)
+				loaded.add(future.get());
+			return loaded;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while loading configuration.", e);
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof JSONException)
+				throw (JSONException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new RuntimeException(cause);
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	private static void intern(Map<String, Resolvable> roots, ResolverInterner interner) throws JSONException
+	{
+		for (Entry<String, Resolvable> e : roots.entrySet())
+			e.setValue(interner.intern(e.getValue()));
+	}
+
+	static ServiceRegistry.Source loadFile(File codeFile) throws JSONException
+	{
+		ServiceRegistry.Source source = new ServiceRegistry.Source(codeFile);
+		FileInputStream fileHandle = null;
+		try
+		{
+			log.debug("Loading: " + codeFile.getPath());
+			if (codeFile.getName().endsWith(".rsl"))
+				bindWebServices(source, LevrResolverParser.decodeStreams(codeFile));
+			if (codeFile.getName().endsWith(".rs2"))
+				bindWebServicesAndFunctions(source, LevrResolverV2Parser.decodeStreams(codeFile, source.lines));
+			JSONObject scriptPack = null;
+			Map<String, JSONObject> scriptStreams = null;
+			if (codeFile.getName().endsWith(".psl"))
+			{
+				fileHandle = new FileInputStream(codeFile);
+				String cleanFilename = codeFile.getName().substring(0, codeFile.getName().lastIndexOf("."));
+				scriptPack = new JSONObject();
+				scriptPack.put("function", "python");
+				scriptPack.put("expression", IOUtils.toString(fileHandle));
+				scriptStreams = new EwMap<String, JSONObject>();
+				scriptStreams.put(cleanFilename, scriptPack);
+				bindWebServices(source, scriptStreams);
+			}
+			if (codeFile.getName().endsWith(".jsl"))
+			{
+				fileHandle = new FileInputStream(codeFile);
+				String cleanFilename = codeFile.getName().substring(0, codeFile.getName().lastIndexOf("."));
+				scriptPack = new JSONObject();
+				scriptPack.put("function", "javascript");
+				scriptPack.put("expression", IOUtils.toString(fileHandle));
+				scriptStreams = new EwMap<String, JSONObject>();
+				scriptStreams.put(cleanFilename, scriptPack);
+				bindWebServices(source, scriptStreams);
+			}
+		}
+		catch (NullPointerException ex)
+		{
+			System.out.println("Failed on " + codeFile.getPath());
+			ex.printStackTrace();
+		}
+		catch (IOException e)
+		{
+			System.out.println("Failed on " + codeFile.getPath());
+			e.printStackTrace();
+		}
+		finally
+		{
+			if (fileHandle != null)
+				IOUtils.closeQuietly(fileHandle);
+		}
+		return source;
+	}
+
+	private static void bindWebServices(ServiceRegistry.Source source, Map<String, JSONObject> decodeStreams) throws JSONException
+	{
+		for (Entry<String, JSONObject> entry : decodeStreams.entrySet())
+			source.services.put((entry.getKey().startsWith("/") ? "" : "/") + entry.getKey(), ResolverFactory.create(entry.getValue()));
+	}
+
+	private static void bindWebServicesAndFunctions(ServiceRegistry.Source source, Tuple<Map<String, JSONObject>, Map<String, JSONObject>> decodeStreams)
+			throws JSONException
+	{
+		bindWebServices(source, decodeStreams.getFirst());
+		for (Entry<String, JSONObject> entry : decodeStreams.getSecond().entrySet())
+			source.functions.put(entry.getKey().substring(1), ResolverFactory.create(entry.getValue()));
+	}
+}
@@ -0,0 +1,277 @@
+package com.eduworks.levr.servlet.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/*
+ * Watches the web configuration directory on a background thread and reloads when a script changes, so
+ * request threads never walk the directory tree.
+ *
+ * Uses a java.nio WatchService over the directory and its subdirectories. Bursts of events, as editors and
+ * deployments produce, are folded into one reload once the directory has been quiet for a moment. Where
+ * watching is not supported, and on network file systems (NFS, SMB and the like) where it misses changes
+ * made by other hosts, the tree is polled for the latest modification time and number of scripts instead.
+ * While the configuration has never loaded, it is retried every polling interval, here rather than on
+ * request threads.
+ *
+ * -Dlevr.config.watch selects "auto" (default: watch local file systems, poll others), "poll" or "off"
+ * (only the retries).
+ * -Dlevr.config.poll sets the polling interval in milliseconds (default 5000).
+ */
+final class ConfigWatcher implements Runnable
+{
+	private static final Logger log = Logger.getLogger(ConfigWatcher.class);
+	private static final String mode = System.getProperty("levr.config.watch", "auto");
+	private static final long pollMs = Long.getLong("levr.config.poll", 5000L);
+	private static final long quietMs = 500;
+
+	private static ConfigWatcher started = null;
+	private static volatile boolean retrying = false;
+
+	private final File root;
+	private final Runnable reload;
+
+	private ConfigWatcher(File root, Runnable reload)
+	{
+		this.root = root;
+		this.reload = reload;
+	}
+
+	/** Starts watching, once per JVM. */
+	static synchronized void start(File root, Runnable reload)
+	{
+		if (started != null)
+			return;
+		started = new ConfigWatcher(root, reload);
+		Thread t = new Thread(started, "levr-config-watcher");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/** Reload every polling interval, changes or not, until set back to false. */
+	static void setRetrying(boolean retry)
+	{
+		retrying = retry;
+	}
+
+	/** @return true if a FileStore type names a network file system. */
+	static boolean isRemote(String type)
+	{
+		if (type == null)
+			return false;
+		type = type.toLowerCase();
+		return type.startsWith("nfs") || type.startsWith("cifs") || type.startsWith("smb") || type.equals("afs") || type.equals("ncpfs")
+				|| type.equals("9p") || type.startsWith("fuse.") || type.equals("glusterfs") || type.equals("ceph") || type.equals("lustre")
+				|| type.equals("gpfs");
+	}
+
+	private boolean isLocal()
+	{
+		try
+		{
+			String type = Files.getFileStore(root.toPath()).type();
+			if (!isRemote(type))
+				return true;
+			log.debug(root.getPath() + " is on " + type + ", polling it.");
+			return false;
+		}
+		catch (IOException e)
+		{
+			log.warn("Cannot tell the file system of " + root.getPath() + ", polling it: " + e.getMessage());
+			return false;
+		}
+	}
+
+	static boolean isScript(String name)
+	{
+		return name.endsWith(".rsl") || name.endsWith(".rs2") || name.endsWith(".psl") || name.endsWith(".jsl");
+	}
+
+	@Override
+	public void run()
+	{
+		try
+		{
+			if ("off".equals(mode))
+			{
+				// Not watching, but a failed first load is still retried.
+				while (retrying)
+				{
+					Thread.sleep(pollMs);
+					if (retrying)
+						reload();
+				}
+				return;
+			}
+			if (!"poll".equals(mode) && isLocal())
+			{
+				try
+				{
+					watch();
+					return;
+				}
+				catch (IOException e)
+				{
+					log.warn("Cannot watch " + root.getPath() + ", polling it instead: " + e.getMessage());
+				}
+				catch (UnsupportedOperationException e)
+				{
+					log.warn("Cannot watch " + root.getPath() + ", polling it instead: " + e.getMessage());
+				}
+			}
+			poll();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void watch() throws IOException, InterruptedException
+	{
+		WatchService service = root.toPath().getFileSystem().newWatchService();
+		Map<WatchKey, Path> dirs = new HashMap<WatchKey, Path>();
+		register(service, dirs, root);
+		log.debug("Watching " + dirs.size() + " directories under " + root.getPath());
+		try
+		{
+			while (true)
+			{
+				boolean changed = false;
+				WatchKey key = retrying ? service.poll(pollMs, TimeUnit.MILLISECONDS) : service.take();
+				if (key != null)
+				{
+					changed |= handle(service, dirs, key);
+					// Wait for the burst to settle.
+					while ((key = service.poll(quietMs, TimeUnit.MILLISECONDS)) != null)
+						changed |= handle(service, dirs, key);
+				}
+				if (changed || retrying)
+					reload();
+			}
+		}
+		catch (ClosedWatchServiceException e)
+		{
+			log.warn("Stopped watching " + root.getPath());
+		}
+		finally
+		{
+			service.close();
+		}
+	}
+
+	/** @return true if a script, or a directory that may hold scripts, changed. */
+	private boolean handle(WatchService service, Map<WatchKey, Path> dirs, WatchKey key)
+	{
+		boolean changed = false;
+		Path dir = dirs.get(key);
+		for (WatchEvent<?> event : key.pollEvents())
+		{
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null)
+			{
+				changed = true;
+				continue;
+			}
+			File file = dir.resolve((Path) event.context()).toFile();
+			if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && file.isDirectory())
+			{
+				register(service, dirs, file);
+				changed = true;
+			}
+			else if (isScript(file.getName()))
+				changed = true;
+		}
+		if (!key.reset())
+		{
+			// Directory is gone, and any scripts in it.
+			dirs.remove(key);
+			changed = true;
+		}
+		return changed;
+	}
+
+	private static void register(WatchService service, Map<WatchKey, Path> dirs, File dir)
+	{
+		if (!dir.isDirectory() || !dir.canRead())
+			return;
+		try
+		{
+			Path path = dir.toPath();
+			dirs.put(path.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+					StandardWatchEventKinds.ENTRY_MODIFY), path);
+		}
+		catch (IOException e)
+		{
+			log.warn("Cannot watch " + dir.getPath() + ": " + e.getMessage());
+		}
+		File[] children = dir.listFiles();
+		if (children != null)
+			for (File child : children)
+				if (child.isDirectory())
+					register(service, dirs, child);
+	}
+
+	private void poll() throws InterruptedException
+	{
+		log.debug("Polling " + root.getPath() + " every " + pollMs + "ms");
+		long last = signature(root);
+		while (true)
+		{
+			Thread.sleep(pollMs);
+			long now = signature(root);
+			if (now != last || retrying)
+			{
+				last = now;
+				reload();
+			}
+		}
+	}
+
+	/** Latest modification time and number of the scripts under a directory, folded together. */
+	static long signature(File dir)
+	{
+		long[] acc = new long[2];
+		scan(dir, acc);
+		return acc[0] * 31 + acc[1];
+	}
+
+	private static void scan(File dir, long[] acc)
+	{
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (File f : files)
+			if (f.canRead())
+				if (f.isDirectory())
+					scan(f, acc);
+				else if (isScript(f.getName()))
+				{
+					acc[0] = Math.max(acc[0], f.lastModified());
+					acc[1]++;
+				}
+	}
+
+	private void reload()
+	{
+		try
+		{
+			reload.run();
+		}
+		catch (RuntimeException e)
+		{
+			log.error("Reload of " + root.getPath() + " failed.", e);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package com.eduworks.levr.servlet.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Reads an upload that was spilled to disk, so crunchers get the file as a stream without it being loaded
+ * into the heap.
+ *
+ * The file is only opened on the first read. mark() and reset() work at any distance, as they did on the
+ * ByteArrayInputStreams uploads used to arrive in. close() lets go of the file so it can be deleted, but
+ * like a ByteArrayInputStream the stream can still be read afterwards; it reopens the file where it left off.
+ */
+final class FileChannelInputStream extends InputStream
+{
+	private final File file;
+	private final byte[] single = new byte[1];
+	private FileChannel channel = null;
+	private long position = 0;
+	private long mark = 0;
+
+	FileChannelInputStream(File file)
+	{
+		this.file = file;
+	}
+
+	private FileChannel channel() throws IOException
+	{
+		if (channel == null)
+		{
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			channel.position(position);
+		}
+		return channel;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		int n;
+		while ((n = read(single, 0, 1)) == 0)
+			;
+		return n < 0 ? -1 : single[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if (len == 0)
+			return 0;
+		int n = channel().read(ByteBuffer.wrap(b, off, len));
+		if (n > 0)
+			position += n;
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException
+	{
+		if (n <= 0)
+			return 0;
+		long skipped = Math.min(n, Math.max(0, channel().size() - position));
+		position += skipped;
+		channel.position(position);
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException
+	{
+		return (int) Math.min(Integer.MAX_VALUE, Math.max(0, channel().size() - position));
+	}
+
+	@Override
+	public boolean markSupported()
+	{
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit)
+	{
+		mark = position;
+	}
+
+	@Override
+	public synchronized void reset() throws IOException
+	{
+		position = mark;
+		if (channel != null)
+			channel.position(position);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (channel != null)
+		{
+			FileChannel c = channel;
+			channel = null;
+			c.close();
+		}
+	}
+}
@@ -0,0 +1,297 @@
+package com.eduworks.levr.servlet.impl;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.eduworks.levr.servlet.LevrServlet;
+import com.eduworks.resolver.CallTreeProfiler;
+import com.eduworks.resolver.Context;
+import com.eduworks.resolver.Cruncher;
+import com.eduworks.resolver.LatencyHistogram;
+import com.eduworks.resolver.Resolvable;
+import com.eduworks.resolver.ResultCache;
+
+/**
+ * Serves execution statistics of the web services and functions loaded by
+ * {@link LevrResolverServlet}, and of every cruncher node in their trees.
+ * <p>
+ * For each service and node: executions, total time, self time (time not
+ * spent in child crunchers) and p50/p90/p99/max latency. Node figures belong
+ * to the cruncher instance, so a subtree shared by several services reports
+ * the same combined figures under each of them.
+ * <p>
+ * Also reports the memo cache and the number of request contexts that were
+ * dropped without being closed.
+ * <p>
+ * JSON by default; <code>?format=prometheus</code> for the Prometheus text
+ * format. <code>?service=/name</code> limits the output to one service.
+ * <p>
+ * <code>/api/metrics/profile</code> serves the call trees collected by
+ * {@link CallTreeProfiler} (with -Dlevr.profile=true), as JSON or with
+ * <code>?format=collapsed</code> as collapsed stacks for flame graphs.
+ */
+@SuppressWarnings("serial")
+public class LevrMetricsServlet extends LevrServlet
+{
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+
+	@Override
+	public String getServletPath()
+	{
+		return "/api/metrics/*";
+	}
+
+	@Override
+	public String getServletPathExample()
+	{
+		return "/api/metrics";
+	}
+
+	@Override
+	public void go(String methodType, HttpServletRequest request, HttpServletResponse response, ServletOutputStream outputStream) throws IOException
+	{
+		String format = getStringFromParameter(request, "format", "json");
+		String only = getStringFromParameter(request, "service", null);
+		PrintStream pw = new PrintStream(outputStream);
+
+		response.setHeader("cache-control", "private, no-cache, no-store");
+		try
+		{
+			String path = request.getPathInfo();
+			if (path != null && path.startsWith("/profile"))
+			{
+				if ("collapsed".equals(format))
+				{
+					response.setContentType("text/plain");
+					StringBuilder sb = new StringBuilder();
+					CallTreeProfiler.writeCollapsed(sb, only);
+					pw.print(sb);
+				}
+				else
+				{
+					response.setContentType("application/json");
+					pw.print(profileToJson(only).toString(2));
+				}
+			}
+			else if ("prometheus".equals(format))
+			{
+				response.setContentType("text/plain; version=0.0.4");
+				writePrometheus(pw, only);
+			}
+			else
+			{
+				response.setContentType("application/json");
+				pw.print(toJson(only).toString(2));
+			}
+		}
+		catch (JSONException e)
+		{
+			throw new IOException(e.getMessage());
+		}
+		pw.flush();
+	}
+
+	/** Service and function roots by name. Functions are prefixed with '#', as in RS2. */
+	private static Map<String, Resolvable> roots(String only)
+	{
+		Map<String, Resolvable> roots = new TreeMap<String, Resolvable>();
+		ServiceRegistry registry = LevrResolverServlet.getRegistry();
+		if (registry != null)
+		{
+			roots.putAll(registry.services);
+			for (Entry<String, Resolvable> e : registry.functions.entrySet())
+				roots.put("#" + e.getKey(), e.getValue());
+		}
+		if (only != null)
+			roots.keySet().retainAll(java.util.Collections.singleton(only));
+		return roots;
+	}
+
+	private static String statsName(String root)
+	{
+		return root.startsWith("#") ? root.substring(1) : root;
+	}
+
+	private static JSONObject toJson(String only) throws JSONException
+	{
+		JSONObject result = new JSONObject();
+		JSONArray services = new JSONArray();
+		JSONArray crunchers = new JSONArray();
+		Map<String, ServiceStats> stats = ServiceStats.getAll();
+		for (Entry<String, Resolvable> e : roots(only).entrySet())
+		{
+			JSONObject service = new JSONObject();
+			service.put("service", e.getKey());
+			ServiceStats s = stats.get(statsName(e.getKey()));
+			if (s != null)
+			{
+				service.put("executions", s.executions.sum());
+				service.put("totalMs", ms(s.nanos.sum()));
+				putLatency(service, s.latency);
+			}
+			else
+				service.put("executions", 0);
+			if (e.getValue() instanceof Cruncher)
+				service.put("selfMs", ms(((Cruncher) e.getValue()).nanosProcessing.sum()));
+			services.put(service);
+			walkJson(e.getKey(), "", e.getValue(), crunchers);
+		}
+		result.put("services", services);
+		result.put("crunchers", crunchers);
+
+		JSONObject memo = new JSONObject();
+		memo.put("hits", ResultCache.getHits());
+		memo.put("misses", ResultCache.getMisses());
+		memo.put("evictions", ResultCache.getEvictions());
+		memo.put("size", ResultCache.size());
+		result.put("memo", memo);
+		result.put("leakedContexts", Context.getLeaked());
+		return result;
+	}
+
+	private static void walkJson(String service, String path, Object node, JSONArray out) throws JSONException
+	{
+		if (!(node instanceof Cruncher))
+			return;
+		Cruncher cruncher = (Cruncher) node;
+		JSONObject jo = new JSONObject();
+		jo.put("service", service);
+		jo.put("path", path.isEmpty() ? "/" : path);
+		jo.put("function", cruncher.getResolverName());
+		jo.put("executions", cruncher.executions.sum());
+		jo.put("totalMs", ms(cruncher.nanosInside.sum()));
+		jo.put("selfMs", ms(cruncher.nanosProcessing.sum()));
+		putLatency(jo, cruncher.getLatency());
+		out.put(jo);
+		if (cruncher.data != null)
+			for (Entry<String, Object> e : cruncher.data.entrySet())
+				walkJson(service, path + "/" + e.getKey(), e.getValue(), out);
+	}
+
+	private static JSONObject profileToJson(String only) throws JSONException
+	{
+		JSONObject result = new JSONObject();
+		result.put("enabled", CallTreeProfiler.enabled);
+		JSONArray services = new JSONArray();
+		for (Entry<String, CallTreeProfiler.Node> e : CallTreeProfiler.getServices().entrySet())
+			if (only == null || only.equals(e.getKey()))
+			{
+				JSONObject service = profileToJson(e.getValue());
+				service.put("service", e.getKey());
+				services.put(service);
+			}
+		result.put("services", services);
+		return result;
+	}
+
+	private static JSONObject profileToJson(CallTreeProfiler.Node node) throws JSONException
+	{
+		JSONObject jo = new JSONObject();
+		jo.put("name", node.name);
+		jo.put("calls", node.calls.sum());
+		jo.put("totalMs", ms(node.nanosTotal.sum()));
+		jo.put("selfMs", ms(node.nanosSelf.sum()));
+		Map<String, CallTreeProfiler.Node> children = node.getChildren();
+		if (!children.isEmpty())
+		{
+			JSONArray ja = new JSONArray();
+			for (CallTreeProfiler.Node child : children.values())
+				ja.put(profileToJson(child));
+			jo.put("children", ja);
+		}
+		return jo;
+	}
+
+	private static void putLatency(JSONObject jo, LatencyHistogram h) throws JSONException
+	{
+		for (double q : QUANTILES)
+			jo.put("p" + Math.round(q * 100) + "Ms", h == null ? 0 : ms(h.getPercentile(q)));
+		jo.put("maxMs", h == null ? 0 : ms(h.getMax()));
+	}
+
+	private static void writePrometheus(PrintStream pw, String only)
+	{
+		Map<String, Resolvable> roots = roots(only);
+		Map<String, ServiceStats> stats = ServiceStats.getAll();
+
+		pw.print("# HELP levr_service_seconds Latency of web services and functions.\n");
+		pw.print("# TYPE levr_service_seconds summary\n");
+		for (String root : roots.keySet())
+		{
+			ServiceStats s = stats.get(statsName(root));
+			if (s == null)
+				continue;
+			String labels = "service=\"" + escape(root) + "\"";
+			writeSummary(pw, "levr_service_seconds", labels, s.latency, s.nanos.sum(), s.executions.sum());
+		}
+
+		pw.print("# HELP levr_cruncher_seconds Latency of cruncher nodes, including their children.\n");
+		pw.print("# TYPE levr_cruncher_seconds summary\n");
+		StringBuilder self = new StringBuilder();
+		for (Entry<String, Resolvable> e : roots.entrySet())
+			walkPrometheus(pw, self, e.getKey(), "", e.getValue());
+
+		pw.print("# HELP levr_cruncher_self_seconds_total Time spent in cruncher nodes, excluding child crunchers.\n");
+		pw.print("# TYPE levr_cruncher_self_seconds_total counter\n");
+		pw.print(self);
+
+		pw.print("# TYPE levr_memo_hits_total counter\n");
+		pw.print("levr_memo_hits_total " + ResultCache.getHits() + "\n");
+		pw.print("# TYPE levr_memo_misses_total counter\n");
+		pw.print("levr_memo_misses_total " + ResultCache.getMisses() + "\n");
+		pw.print("# TYPE levr_memo_evictions_total counter\n");
+		pw.print("levr_memo_evictions_total " + ResultCache.getEvictions() + "\n");
+		pw.print("# HELP levr_context_leaked_total Request contexts with onFinalize events that were never closed.\n");
+		pw.print("# TYPE levr_context_leaked_total counter\n");
+		pw.print("levr_context_leaked_total " + Context.getLeaked() + "\n");
+	}
+
+	private static void walkPrometheus(PrintStream pw, StringBuilder self, String service, String path, Object node)
+	{
+		if (!(node instanceof Cruncher))
+			return;
+		Cruncher cruncher = (Cruncher) node;
+		String labels = "service=\"" + escape(service) + "\",path=\"" + escape(path.isEmpty() ? "/" : path) + "\",function=\""
+				+ escape(cruncher.getResolverName()) + "\"";
+		writeSummary(pw, "levr_cruncher_seconds", labels, cruncher.getLatency(), cruncher.nanosInside.sum(), cruncher.executions.sum());
+		self.append("levr_cruncher_self_seconds_total{").append(labels).append("} ").append(seconds(cruncher.nanosProcessing.sum())).append('\n');
+		if (cruncher.data != null)
+			for (Entry<String, Object> e : cruncher.data.entrySet())
+				walkPrometheus(pw, self, service, path + "/" + e.getKey(), e.getValue());
+	}
+
+	private static void writeSummary(PrintStream pw, String name, String labels, LatencyHistogram h, long nanos, long count)
+	{
+		for (double q : QUANTILES)
+			pw.print(name + "{" + labels + ",quantile=\"" + q + "\"} " + (h == null ? 0 : seconds(h.getPercentile(q))) + "\n");
+		pw.print(name + "{" + labels + ",quantile=\"1.0\"} " + (h == null ? 0 : seconds(h.getMax())) + "\n");
+		pw.print(name + "_sum{" + labels + "} " + seconds(nanos) + "\n");
+		pw.print(name + "_count{" + labels + "} " + count + "\n");
+	}
+
+	private static String escape(String label)
+	{
+		return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static double ms(long nanos)
+	{
+		return nanos / 1000000.0;
+	}
+
+	private static double seconds(long nanos)
+	{
+		return nanos / 1000000000.0;
+	}
+}
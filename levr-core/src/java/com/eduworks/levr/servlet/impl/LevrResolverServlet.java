@@ -3,11 +3,11 @@ package com.eduworks.levr.servlet.impl;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
+import java.io.Writer;
 import java.lang.ref.SoftReference;
 import java.util.Collections;
 import java.util.HashMap;
@@ -16,197 +16,242 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
-import javax.servlet.ServletInputStream;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.fileupload.FileItem;
-import org.apache.commons.fileupload.FileItemFactory;
 import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.disk.DiskFileItem;
 import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
-import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.eduworks.interfaces.EwJsonSerializable;
-import com.eduworks.lang.EwList;
-import com.eduworks.lang.EwMap;
-import com.eduworks.lang.json.EwJsonCollection;
 import com.eduworks.lang.util.EwCache;
-import com.eduworks.lang.util.EwJson;
 import com.eduworks.levr.servlet.LevrServlet;
+import com.eduworks.resolver.CallTreeProfiler;
 import com.eduworks.resolver.Context;
+import com.eduworks.resolver.ContextEvent;
 import com.eduworks.resolver.Cruncher;
 import com.eduworks.resolver.Resolvable;
 import com.eduworks.resolver.ResolverFactory;
+import com.eduworks.resolver.ResultCache;
 import com.eduworks.resolver.exception.SoftException;
-import com.eduworks.resolver.lang.LevrResolverParser;
-import com.eduworks.resolver.lang.LevrResolverV2Parser;
-import com.eduworks.util.Tuple;
 import com.eduworks.util.io.EwFileSystem;
 import com.eduworks.util.io.InMemoryFile;
 
 @SuppressWarnings("serial")
 public class LevrResolverServlet extends LevrServlet
 {
-	public static Map<String, Resolvable> resolvableWebServices;
-	public static Map<String, Resolvable> resolvableFunctions;
-	public static List<File> codeFiles;
-	static long codeFilesLastModifiedMs = 0;
+	private static volatile ServiceRegistry registry = null;
+	/*
+	 * Unmodifiable views of the current registry, kept for code that still reads them. Assigning them
+	 * changes nothing; use the getters below, and setRegistry to change the configuration.
+	 */
+	@Deprecated
+	public static volatile Map<String, Resolvable> resolvableWebServices;
+	@Deprecated
+	public static volatile Map<String, Resolvable> resolvableFunctions;
+	/** Name of the file each service (and '#' function) was loaded from. */
+	@Deprecated
+	public static volatile Map<String, String> resolvableSources;
+	@Deprecated
+	public static volatile List<File> codeFiles;
+	/** When the configuration was first loaded on a request thread, see initConfig. */
 	public static long codeFilesLastCheckedMs = 0;
+	/** Why the configuration has not loaded yet, while it has not. */
+	private static volatile String configError = null;
+	/** Held while (re)loading the configuration. Requests do not take it. */
 	public static Object lock = new Object();
 
 	private static final String FAVICON_REQUEST_STRING = "favicon.ico";
+	/**
+	 * Holds multipart uploads. Parts up to -Dlevr.upload.threshold bytes (default 1MB) stay in memory, larger
+	 * ones are written to -Dlevr.upload.dir (default the temporary directory) and read from there.
+	 */
+	private static final DiskFileItemFactory uploadFactory = new DiskFileItemFactory(Integer.getInteger("levr.upload.threshold", 1024 * 1024),
+			new File(System.getProperty("levr.upload.dir", System.getProperty("java.io.tmpdir"))));
 
 	static
 	{
 		ResolverFactory.populateFactorySpecsDynamically();
 	}
 
+	/**
+	 * Loads the web configuration on first use and starts watching it for
+	 * changes. Later changes, and retries of a first load that failed, are
+	 * left to {@link ConfigWatcher}, never done on the request thread.
+	 */
 	public static boolean initConfig(PrintStream pw) throws IOException
 	{
-		if (codeFilesLastCheckedMs + 5000 < System.currentTimeMillis())
+		if (registry != null)
+			return true;
+		synchronized (lock)
 		{
+			if (registry != null)
+				return true;
+			if (codeFilesLastCheckedMs != 0)
+			{
+				pw.println("Error in config: " + configError);
+				return false;
+			}
 			codeFilesLastCheckedMs = System.currentTimeMillis();
-			if (resolvableWebServices == null || getFilesLastModified(new File(EwFileSystem.getWebConfigurationPath())) != codeFilesLastModifiedMs
-					|| codeFiles.size() == 0)
+			File root = new File(EwFileSystem.getWebConfigurationPath());
+			ConfigWatcher.setRetrying(true);
+			ConfigWatcher.start(root, new Runnable()
 			{
-				FileReader input = null;
-				try
+				@Override
+				public void run()
 				{
-					synchronized (lock)
+					try
 					{
-						resolvableWebServices = new EwMap<String, Resolvable>();
-						resolvableFunctions = new EwMap<String, Resolvable>();
-						codeFiles = new EwList<File>();
-						loadAdditionalConfigFiles(new File(EwFileSystem.getWebConfigurationPath()));
+						loadConfig();
 					}
-					for (String webService : resolvableFunctions.keySet())
+					catch (JSONException e)
 					{
-						if (webService.toLowerCase().endsWith("autoexecute"))
-						{
-							Context c = new Context();
-							try
-							{
-								execute(log, true, webService, c, new HashMap<String, String[]>(), new HashMap<String, InputStream>(), true);
-								c.success();
-							}
-							catch (Exception ex)
-							{
-								c.failure();
-								log.debug("Auto-Execute failed.", ex);
-							}
-							c.finish();
-						}
+						configError = e.getMessage();
+						log.error("Error in config, keeping the previous one: " + e.getMessage(), e);
 					}
-					return true;
-				}
-				catch (JSONException e)
-				{
-					pw.println("Error in config: " + e.getMessage());
-					e.printStackTrace();
-					return false;
-				}
-				finally
-				{
-					IOUtils.closeQuietly(input);
+					ConfigWatcher.setRetrying(registry == null);
 				}
+			});
+			try
+			{
+				loadConfig();
+				ConfigWatcher.setRetrying(false);
+				return true;
+			}
+			catch (JSONException e)
+			{
+				configError = e.getMessage();
+				pw.println("Error in config: " + e.getMessage());
+				e.printStackTrace();
+				return false;
 			}
 		}
-		return true;
 	}
 
-	public static void loadAdditionalConfigFiles(File codeFile) throws JSONException
+	/**
+	 * Loads the web configuration and publishes it. Only script files that
+	 * changed since the last load are reparsed; services and functions of the
+	 * others keep their crunchers. Autoexecute functions of the files that were
+	 * (re)loaded are run. If the configuration has errors, the previous one
+	 * stays in place.
+	 */
+	public static void loadConfig() throws JSONException
 	{
-		if (codeFile.canRead())
+		List<ServiceRegistry.Source> loaded;
+		synchronized (lock)
 		{
-			if (codeFile.isDirectory())
-				for (File f2 : codeFile.listFiles())
-					loadAdditionalConfigFiles(f2);
-			else if (codeFile.isFile())
-			{
-				FileInputStream fileHandle = null;
-				try
-				{
-					if (codeFile.getName().endsWith(".rsl"))
-					{
-						log.debug("Loading: " + codeFile.getPath());
-						codeFiles.add(codeFile);
-						bindWebServices(resolvableWebServices, LevrResolverParser.decodeStreams(codeFile));
-						codeFilesLastModifiedMs = Math.max(codeFile.lastModified(), codeFilesLastModifiedMs);
-					}
-					if (codeFile.getName().endsWith(".rs2"))
+			ServiceRegistry previous = registry;
+			ServiceRegistry.Builder builder = new ServiceRegistry.Builder();
+			loaded = ConfigLoader.load(new File(EwFileSystem.getWebConfigurationPath()), previous, builder);
+
+			boolean functionsChanged = false;
+			int removed = 0;
+			if (previous != null)
+				for (Entry<String, ServiceRegistry.Source> e : previous.files.entrySet())
+					if (builder.files.get(e.getKey()) != e.getValue())
 					{
-						log.debug("Loading: " + codeFile.getPath());
-						codeFiles.add(codeFile);
-						bindWebServicesAndFunctions(resolvableWebServices, resolvableFunctions, LevrResolverV2Parser.decodeStreams(codeFile));
-						codeFilesLastModifiedMs = Math.max(codeFile.lastModified(), codeFilesLastModifiedMs);
+						if (!builder.files.containsKey(e.getKey()))
+							removed++;
+						functionsChanged |= !e.getValue().functions.isEmpty();
 					}
-					JSONObject scriptPack = null;
-					Map<String, JSONObject> scriptStreams = null;
-					if (codeFile.getName().endsWith(".psl"))
+			if (previous != null && loaded.isEmpty() && removed == 0)
+				return;
+			for (ServiceRegistry.Source source : loaded)
+				functionsChanged |= !source.functions.isEmpty();
+
+			log.debug("Loaded " + loaded.size() + " of " + builder.files.size() + " files, removed " + removed + ".");
+			setRegistry(builder.build());
+			// Memoized results of unchanged services stay valid unless a function they may call changed.
+			if (functionsChanged)
+				ResultCache.clear();
+		}
+		for (ServiceRegistry.Source source : loaded)
+			for (String webService : source.functions.keySet())
+			{
+				if (webService.toLowerCase().endsWith("autoexecute"))
+				{
+					Context c = new Context();
+					try
 					{
-						log.debug("Loading: " + codeFile.getPath());
-						codeFiles.add(codeFile);
-						fileHandle = new FileInputStream(codeFile);
-						String cleanFilename = codeFile.getName().substring(0, codeFile.getName().lastIndexOf("."));
-						scriptPack = new JSONObject();
-						scriptPack.put("function", "python");
-						scriptPack.put("expression", IOUtils.toString(fileHandle));
-						scriptStreams = new EwMap<String, JSONObject>();
-						scriptStreams.put(cleanFilename, scriptPack);
-						bindWebServices(resolvableWebServices, scriptStreams);
-						codeFilesLastModifiedMs = Math.max(codeFile.lastModified(), codeFilesLastModifiedMs);
+						execute(log, true, webService, c, new HashMap<String, String[]>(), new HashMap<String, InputStream>(), true);
+						c.success();
 					}
-					if (codeFile.getName().endsWith(".jsl"))
+					catch (Exception ex)
 					{
-						log.debug("Loading: " + codeFile.getPath());
-						codeFiles.add(codeFile);
-						fileHandle = new FileInputStream(codeFile);
-						String cleanFilename = codeFile.getName().substring(0, codeFile.getName().lastIndexOf("."));
-						scriptPack = new JSONObject();
-						scriptPack.put("function", "javascript");
-						scriptPack.put("expression", IOUtils.toString(fileHandle));
-						scriptStreams = new EwMap<String, JSONObject>();
-						scriptStreams.put(cleanFilename, scriptPack);
-						bindWebServices(resolvableWebServices, scriptStreams);
-						codeFilesLastModifiedMs = Math.max(codeFile.lastModified(), codeFilesLastModifiedMs);
+						c.failure();
+						log.debug("Auto-Execute failed.", ex);
 					}
-				}
-				catch (NullPointerException ex)
-				{
-					System.out.println("Failed on " + codeFile.getPath());
-					ex.printStackTrace();
-				}
-				catch (IOException e)
-				{
-					System.out.println("Failed on " + codeFile.getPath());
-					e.printStackTrace();
-				}
-				finally
-				{
-					if (fileHandle != null)
-						IOUtils.closeQuietly(fileHandle);
+					c.finish();
+					c.close();
 				}
 			}
+	}
+
+	/** @return the configuration requests are currently served from, or null before the first load. */
+	public static ServiceRegistry getRegistry()
+	{
+		return registry;
+	}
+
+	/** Publishes a configuration. Requests already running finish on the previous one. */
+	public static void setRegistry(ServiceRegistry loaded)
+	{
+		synchronized (lock)
+		{
+			registry = loaded;
+			resolvableWebServices = loaded.services;
+			resolvableFunctions = loaded.functions;
+			resolvableSources = loaded.sources;
+			codeFiles = loaded.getFiles();
 		}
 	}
 
-	private static void bindWebServices(Map<String, Resolvable> config2, Map<String, JSONObject> decodeStreams) throws JSONException
+	// Read-only views of the current registry. Change it with setRegistry.
+
+	/** @return the web services of the current configuration, or null before the first load. */
+	public static Map<String, Resolvable> getResolvableWebServices()
+	{
+		ServiceRegistry r = registry;
+		return r == null ? null : r.services;
+	}
+
+	/** @return the '#' functions of the current configuration, or null before the first load. */
+	public static Map<String, Resolvable> getResolvableFunctions()
 	{
-		for (Entry<String, JSONObject> entry : decodeStreams.entrySet())
-			config2.put((entry.getKey().startsWith("/") ? "" : "/") + entry.getKey(), ResolverFactory.create(entry.getValue()));
+		ServiceRegistry r = registry;
+		return r == null ? null : r.functions;
 	}
 
-	private static void bindWebServicesAndFunctions(Map<String, Resolvable> config2, Map<String, Resolvable> functions2,
-			Tuple<Map<String, JSONObject>, Map<String, JSONObject>> decodeStreams) throws JSONException
+	/** @return the name of the file each service (and '#' function) was loaded from, or null before the first load. */
+	public static Map<String, String> getResolvableSources()
 	{
-		bindWebServices(config2, decodeStreams.getFirst());
-		for (Entry<String, JSONObject> entry : decodeStreams.getSecond().entrySet())
-			functions2.put(entry.getKey().substring(1), ResolverFactory.create(entry.getValue()));
+		ServiceRegistry r = registry;
+		return r == null ? null : r.sources;
+	}
+
+	/** @return the files the current configuration was loaded from, or null before the first load. */
+	public static List<File> getCodeFiles()
+	{
+		ServiceRegistry r = registry;
+		return r == null ? null : r.getFiles();
+	}
+
+	/** Loads more files on top of the current configuration, and publishes the result. */
+	public static void loadAdditionalConfigFiles(File codeFile) throws JSONException
+	{
+		synchronized (lock)
+		{
+			ServiceRegistry.Builder builder = new ServiceRegistry.Builder(registry);
+			ConfigLoader.load(codeFile, null, builder);
+			setRegistry(builder.build());
+		}
 	}
 
 	@Override
@@ -215,6 +260,12 @@ public class LevrResolverServlet extends LevrServlet
 		return "/api/custom/*";
 	}
 
+	@Override
+	protected boolean isAsync()
+	{
+		return ASYNC;
+	}
+
 	@Override
 	public String getServletPathExample()
 	{
@@ -234,79 +285,103 @@ public class LevrResolverServlet extends LevrServlet
 		Map<String, InputStream> dataStreams = null;
 
 		ByteArrayOutputStream os = new ByteArrayOutputStream();
-		PrintStream pw = new PrintStream(outputStream);
+		CompressingOutputStream compressing = new CompressingOutputStream(request, response, outputStream);
+		PooledOutputStream buffered = new PooledOutputStream(compressing);
+		PrintStream pw = new PrintStream(buffered);
 
-		Context c = new Context(request, response, pw);
+		boolean finished = false;
+		try
+		{
+			Context c = new Context(request, response, pw);
+			request.setAttribute(CONTEXT_ATTRIBUTE, c);
 
-		if (isPost(methodType))
-			if (ServletFileUpload.isMultipartContent(request))
-			{
-				try
-				{
-					dataStreams = decodeMultipartContent(c, request);
-				}
-				catch (FileUploadException e)
+			if (isPost(methodType))
+				if (ServletFileUpload.isMultipartContent(request))
 				{
-					throw new IOException(e.getMessage());
+					try
+					{
+						dataStreams = decodeMultipartContent(c, request);
+					}
+					catch (FileUploadException e)
+					{
+						throw new IOException(e.getMessage());
+					}
 				}
-			}
+				else
+					dataStreams = decodeSimpleContent(c, request);
+
+			if (isJsonpRequest(isPost(methodType), jsonpSecurityKey))
+				pw = new PrintStream(os);
 			else
+				startJsonpPayload(request, pw);
+
+			response.setHeader("Access-Control-Allow-Origin", "*");
+			response.setHeader("Access-Control-Allow-Methods", "GET, PUT, POST, DELETE, OPTIONS");
+			//NAUGHTY! We added signatureSheet for one of our projects.
+			response.setHeader("Access-Control-Allow-Headers", "If-Modified-Since, Content-Type, Content-Range, Content-Disposition, Content-Description, signatureSheet");
+
+			if (isJsonpPayloadRequest(isPost(methodType), jsonpSecurityKey))
 			{
+				retreiveJsonpPayload(jsonpSecurityKey, pw);
+				c.close();
+			}
+			else
 				try
 				{
-					dataStreams = decodeSimpleContent(request);
+					execute(request, response, requestString, c, parameterMap, pw, dataStreams);
+					c.success();
 				}
-				catch (FileUploadException e)
+				catch (JSONException e)
 				{
-					throw new IOException(e.getMessage());
+					c.failure();
+					if (response != null)
+						response.setContentType("text/plain");
+					try
+					{
+						JSONObject jo = new JSONObject();
+						jo.put("error", e.toString());
+						pw.print(jo.toString(2));
+					}
+					catch (JSONException e1)
+					{
+						e1.printStackTrace();
+					}
+				}
+				finally
+				{
+					c.finish();
+					c.close();
 				}
-			}
-
-		if (isJsonpRequest(isPost(methodType), jsonpSecurityKey))
-			pw = new PrintStream(os);
-		else
-			startJsonpPayload(request, pw);
 
-		response.setHeader("Access-Control-Allow-Origin", "*");
-		response.setHeader("Access-Control-Allow-Methods", "GET, PUT, POST, DELETE, OPTIONS");
-		//NAUGHTY! We added signatureSheet for one of our projects.
-		response.setHeader("Access-Control-Allow-Headers", "If-Modified-Since, Content-Type, Content-Range, Content-Disposition, Content-Description, signatureSheet");
+			if (isJsonpRequest(isPost(methodType), jsonpSecurityKey))
+				storeJsonpPayload(jsonpSecurityKey, os.toByteArray());
+			else
+				finishJsonpPayload(request, pw);
 
-		if (isJsonpPayloadRequest(isPost(methodType), jsonpSecurityKey))
-			retreiveJsonpPayload(jsonpSecurityKey, pw);
-		else
+			pw.flush();
+			finished = true;
+		}
+		finally
+		{
+			// Also on errors, so the buffer and deflater go back to their pools and a compressed body stays well formed.
 			try
 			{
-				execute(request, response, requestString, c, parameterMap, pw, dataStreams);
-				c.success();
-			}
-			catch (JSONException e)
-			{
-				c.failure();
-				if (response != null)
-					response.setContentType("text/plain");
 				try
 				{
-					JSONObject jo = new JSONObject();
-					jo.put("error", e.toString());
-					pw.print(jo.toString(2));
+					buffered.release();
 				}
-				catch (JSONException e1)
+				finally
 				{
-					e1.printStackTrace();
+					compressing.finish();
 				}
 			}
-			finally
+			catch (IOException e)
 			{
-				c.finish();
+				if (finished)
+					throw e;
+				log.debug("Could not finish the response of a failed request.", e);
 			}
-
-		if (isJsonpRequest(isPost(methodType), jsonpSecurityKey))
-			storeJsonpPayload(jsonpSecurityKey, os.toByteArray());
-		else
-			finishJsonpPayload(request, pw);
-
-		pw.flush();
+		}
 	}
 
 	private boolean isPost(String methodType)
@@ -355,42 +430,48 @@ public class LevrResolverServlet extends LevrServlet
 	private Map<String, InputStream> decodeMultipartContent(Context c, HttpServletRequest request) throws FileUploadException, IOException
 	{
 		LinkedHashMap<String, InputStream> results = new LinkedHashMap<String, InputStream>();
-		FileItemFactory factory = new DiskFileItemFactory();
-		ServletFileUpload upload = new ServletFileUpload(factory);
+		ServletFileUpload upload = new ServletFileUpload(uploadFactory);
 		List<FileItem> parseRequest = upload.parseRequest(request);
 
-		for (FileItem item : parseRequest)
+		for (final FileItem item : parseRequest)
 		{
 			c.filenames.put(item.getFieldName(), item.getName());
-			InputStream inputStream = item.getInputStream();
-			try
-			{
-				results.put(item.getFieldName(), new ByteArrayInputStream(IOUtils.toByteArray(inputStream)));
-			}
-			finally
+			final InputStream inputStream;
+			if (item.isInMemory())
+				inputStream = new ByteArrayInputStream(item.get());
+			else
+				inputStream = new FileChannelInputStream(((DiskFileItem) item).getStoreLocation());
+			results.put(item.getFieldName(), inputStream);
+			// Crunchers read the upload after this returns, so its file stays until the request is over.
+			c.onFinalize(new ContextEvent()
 			{
-				EwFileSystem.closeIt(inputStream);
-				item.delete();
-			}
+				@Override
+				public void go()
+				{
+					EwFileSystem.closeIt(inputStream);
+					item.delete();
+				}
+			});
 		}
 		log.debug("Decoded " + results.size() + " multi part mime inputs.");
 		return results;
 	}
 
-	private Map<String, InputStream> decodeSimpleContent(HttpServletRequest request) throws FileUploadException, IOException
+	private Map<String, InputStream> decodeSimpleContent(Context c, HttpServletRequest request)
 	{
 		LinkedHashMap<String, InputStream> results = new LinkedHashMap<String, InputStream>();
 
-		ServletInputStream inputStream = request.getInputStream();
-		try
+		// Read on first use, see RequestBodyInputStream.
+		final RequestBodyInputStream body = new RequestBodyInputStream(request);
+		results.put("simple", body);
+		c.onFinalize(new ContextEvent()
 		{
-			results.put("simple", new ByteArrayInputStream(IOUtils.toByteArray(inputStream)));
-		}
-		finally
-		{
-			EwFileSystem.closeIt(inputStream);
-		}
-		log.debug("Decoded " + results.size() + " raw input.");
+			@Override
+			public void go()
+			{
+				body.release();
+			}
+		});
 		return results;
 	}
 
@@ -404,7 +485,10 @@ public class LevrResolverServlet extends LevrServlet
 		final boolean inline = getParameter("inline", parameterMap);
 
 		if (flushAllCache)
+		{
 			EwCache.clearAll();
+			ResultCache.clear();
+		}
 
 		try
 		{
@@ -419,15 +503,13 @@ public class LevrResolverServlet extends LevrServlet
 			response.setHeader("cache-control", "private, no-cache, no-store");
 			if (result instanceof String)
 			{
-				final EwJsonCollection json = EwJson.tryConvert(result);
-
 				if (response != null && request != null && !response.isCommitted())
 				{
 					if (((String) result).startsWith("<html>"))
 						response.setContentType("text/html");
 					else if (getStringFromParameter(request, "callback", null) != null)
 						response.setContentType("text/javascript");
-					else if (json != null)
+					else if (looksLikeJson((String) result))
 						response.setContentType("application/json");
 					else
 						response.setContentType("text/plain");
@@ -445,7 +527,7 @@ public class LevrResolverServlet extends LevrServlet
 			{
 				if (response != null && !response.isCommitted())
 					response.setContentType("text/plain");
-				pw.println(((EwJsonSerializable) result).toJsonObject());
+				print(((EwJsonSerializable) result).toJsonObject(), pw);
 			}
 			else if (result instanceof InMemoryFile)
 			{
@@ -483,21 +565,82 @@ public class LevrResolverServlet extends LevrServlet
 		}
 	}
 
+	/**
+	 * Tells JSON from plain text by its first character, rather than by
+	 * parsing the whole result.
+	 */
+	static boolean looksLikeJson(String result)
+	{
+		for (int i = 0; i < result.length(); i++)
+		{
+			char ch = result.charAt(i);
+			if (!Character.isWhitespace(ch))
+				return ch == '{' || ch == '[';
+		}
+		return false;
+	}
+
+	/** Writes JSON straight to the response instead of building its text first. */
+	private static void print(Object json, PrintStream pw) throws JSONException
+	{
+		if (json instanceof JSONObject || json instanceof JSONArray)
+		{
+			Writer writer = new OutputStreamWriter(pw);
+			try
+			{
+				if (json instanceof JSONObject)
+					((JSONObject) json).write(writer);
+				else
+					((JSONArray) json).write(writer);
+				writer.flush();
+			}
+			catch (IOException e)
+			{
+				throw new JSONException(e.getMessage());
+			}
+			pw.println();
+		}
+		else
+			pw.println(json);
+	}
+
 	public static Object execute(Logger log, boolean useFunctions, String requestString, Context c, Map<String, String[]> parameterMap,
 			Map<String, InputStream> dataStreams, boolean noisy) throws JSONException
 	{
-		Resolvable resolver = requestStringBackoff(requestString, useFunctions, parameterMap);
+		ServiceRouter.Route route = route(requestString, useFunctions, parameterMap);
+		String service = route.name;
+		Resolvable resolver = route.resolvable;
+		if (c.request != null && resolver instanceof Cruncher && ((Cruncher) resolver).data != null
+				&& "false".equals(String.valueOf(((Cruncher) resolver).data.get("_compress"))))
+			c.request.setAttribute(CompressingOutputStream.DISABLE, Boolean.TRUE);
 		if (noisy)
 			log.info("Request: " + requestString + toString(parameterMap));
 		long ms = System.currentTimeMillis();
 		long nanos = System.nanoTime();
-		Object result = resolver.resolve(c, parameterMap, dataStreams);
-		long elapsed = System.nanoTime() - nanos;
-		if (resolver instanceof Cruncher)
+		Object result;
+		CallTreeProfiler.Frame frame = CallTreeProfiler.enabled ? CallTreeProfiler.begin(service, route.source, route.line) : null;
+		try
 		{
-			((Cruncher) resolver).nanosProcessing.addAndGet(elapsed);
-			((Cruncher) resolver).nanosInside.addAndGet(elapsed);
-			((Cruncher) resolver).executions.incrementAndGet();
+			if (resolver instanceof Cruncher)
+				result = ((Cruncher) resolver).evaluate(c, parameterMap, dataStreams);
+			else
+				result = resolver.resolve(c, parameterMap, dataStreams);
+		}
+		finally
+		{
+			CallTreeProfiler.exit(frame);
+		}
+		if (Cruncher.instrument)
+		{
+			long elapsed = System.nanoTime() - nanos;
+			if (resolver instanceof Cruncher)
+			{
+				((Cruncher) resolver).nanosProcessing.add(elapsed);
+				((Cruncher) resolver).nanosInside.add(elapsed);
+				((Cruncher) resolver).executions.increment();
+				((Cruncher) resolver).recordLatency(elapsed);
+			}
+			ServiceStats.get(service).record(elapsed);
 		}
 		if (noisy)
 			log.info("Response (" + (System.currentTimeMillis() - ms) + "ms): " + requestString + toString(parameterMap));
@@ -506,65 +649,23 @@ public class LevrResolverServlet extends LevrServlet
 
 	public static Resolvable requestStringBackoff(String requestString, boolean useFunctions, Map<String, String[]> parameterMap) throws JSONException
 	{
-		// Try full string, then back off a directory at a time until it works.
-		// If it works, then add the remaining part to a parameter.
-		String oldRequestString = requestString;
-		String paramString = "";
-		while (requestString.contains("/") && requestString.length() > 0 && resolvableWebServices.containsKey(requestString) == false
-				&& (!useFunctions || resolvableFunctions.containsKey(requestString)))
-		{
-			paramString = requestString.substring(requestString.lastIndexOf("/")) + paramString;
-			requestString = requestString.substring(0, requestString.lastIndexOf("/"));
-		}
-
-		if (requestString.equals(""))
-			requestString = oldRequestString;
-
-		parameterMap.put("urlRemainder", new String[] { paramString });
-		Resolvable resolvable = null;
-
-		synchronized (lock)
-		{
-			resolvable = resolvableWebServices.get(requestString);
-			if (useFunctions && resolvable == null)
-				resolvable = resolvableFunctions.get(requestString);
-			if (resolvable == null)
-				throw new RuntimeException("Service does not exist: " + requestString);
-			return resolvable;
-		}
+		return route(requestString, useFunctions, parameterMap).resolvable;
 	}
 
-	private static long getFilesLastModified(File dir)
+	/**
+	 * Finds the service that handles a request string, and puts the rest of
+	 * the request string in the urlRemainder parameter.
+	 */
+	private static ServiceRouter.Route route(String requestString, boolean useFunctions, Map<String, String[]> parameterMap)
 	{
-		long lmodified = 0;
-		for (File f : dir.listFiles())
-		{
-			if (f.canRead())
-			{
-				if (f.isDirectory())
-					lmodified = Math.max(lmodified, getFilesLastModified(f));
-				else if (f.isFile())
-				{
-					if (f.getName().endsWith(".rsl"))
-					{
-						lmodified = Math.max(f.lastModified(), lmodified);
-					}
-					if (f.getName().endsWith(".rs2"))
-					{
-						lmodified = Math.max(f.lastModified(), lmodified);
-					}
-					if (f.getName().endsWith(".psl"))
-					{
-						lmodified = Math.max(f.lastModified(), lmodified);
-					}
-					if (f.getName().endsWith(".jsl"))
-					{
-						lmodified = Math.max(f.lastModified(), lmodified);
-					}
-				}
-			}
-		}
-		return lmodified;
+		ServiceRegistry current = registry;
+		if (current == null)
+			throw new RuntimeException("Service does not exist: " + requestString);
+		ServiceRouter.Route route = current.router.route(requestString, useFunctions);
+		if (route == null)
+			throw new RuntimeException("Service does not exist: " + requestString);
+		parameterMap.put("urlRemainder", new String[] { route.remainder(requestString) });
+		return route;
 	}
 
 	private static boolean getParameter(String name, Map<String, String[]> parameterMap)
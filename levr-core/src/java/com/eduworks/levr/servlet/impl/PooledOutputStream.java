@@ -0,0 +1,113 @@
+package com.eduworks.levr.servlet.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/*
+ * Buffers a response on its way to the servlet output stream, with a buffer borrowed from a pool shared by
+ * all requests, so writing a large result takes few writes to the container and allocates no buffer.
+ *
+ * The buffer goes back to the pool when the stream is released or closed; release() leaves the servlet
+ * stream open for the container. Buffer size and pool size are set with -Dlevr.output.buffer (bytes,
+ * default 32768) and -Dlevr.output.pool (default 64). Nothing is written to the container until the
+ * buffer fills or the stream is flushed, so headers can still be set until then.
+ */
+final class PooledOutputStream extends OutputStream
+{
+	private static final int bufferSize = Integer.getInteger("levr.output.buffer", 32768);
+	private static final ArrayBlockingQueue<byte[]> pool = new ArrayBlockingQueue<byte[]>(Math.max(1, Integer.getInteger("levr.output.pool", 64)));
+
+	private final OutputStream out;
+	private byte[] buffer;
+	private int count = 0;
+
+	PooledOutputStream(OutputStream out)
+	{
+		this.out = out;
+		byte[] b = pool.poll();
+		buffer = b != null ? b : new byte[bufferSize];
+	}
+
+	private void drain() throws IOException
+	{
+		if (count > 0)
+		{
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+	}
+
+	private byte[] buffer() throws IOException
+	{
+		if (buffer == null)
+			throw new IOException("Stream released.");
+		return buffer;
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		byte[] buf = buffer();
+		if (count == buf.length)
+			drain();
+		buf[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		byte[] buf = buffer();
+		if (len >= buf.length)
+		{
+			// Larger than the buffer: no point copying it through.
+			drain();
+			out.write(b, off, len);
+			return;
+		}
+		if (len > buf.length - count)
+			drain();
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+	}
+
+	@Override
+	public void flush() throws IOException
+	{
+		if (buffer != null)
+			drain();
+		out.flush();
+	}
+
+	/** Flushes and returns the buffer to the pool, leaving the underlying stream open. */
+	void release() throws IOException
+	{
+		if (buffer == null)
+			return;
+		try
+		{
+			flush();
+		}
+		finally
+		{
+			byte[] b = buffer;
+			buffer = null;
+			count = 0;
+			if (b.length == bufferSize)
+				pool.offer(b);
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			release();
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package com.eduworks.levr.servlet.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import javax.servlet.http.HttpServletRequest;
+
+/*
+ * The body of a simple (not multipart) POST, read from the request only when a cruncher first reads it, so
+ * services that ignore the body never copy it.
+ *
+ * What has been read is kept, so several crunchers can read the body by reset(), as they could on the
+ * ByteArrayInputStream the body used to arrive in; the mark starts at the beginning of the body. The first
+ * -Dlevr.body.buffer bytes (default 1MB) are kept in memory, the rest in a temporary file under
+ * -Dlevr.upload.dir, which release() deletes. -Dlevr.body.buffer=0 keeps nothing and gives up mark/reset.
+ * Like a ByteArrayInputStream, the stream can still be reset and read after close().
+ */
+final class RequestBodyInputStream extends InputStream
+{
+	private static final int limit = Math.max(0, Integer.getInteger("levr.body.buffer", 1024 * 1024));
+	private static final File spillDir = new File(System.getProperty("levr.upload.dir", System.getProperty("java.io.tmpdir")));
+
+	private final HttpServletRequest request;
+	private final byte[] single = new byte[1];
+	private InputStream in = null;
+	/** The body up to kept, while it fits in memory. */
+	private byte[] buffer = null;
+	/** The body up to kept, once it no longer fits in memory. */
+	private File spillFile = null;
+	private FileChannel spill = null;
+	private long kept = 0;
+	private long position = 0;
+	private long mark = 0;
+
+	RequestBodyInputStream(HttpServletRequest request)
+	{
+		this.request = request;
+	}
+
+	private InputStream in() throws IOException
+	{
+		if (in == null)
+			in = request.getInputStream();
+		return in;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		int n;
+		while ((n = read(single, 0, 1)) == 0)
+			;
+		return n < 0 ? -1 : single[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if (len == 0)
+			return 0;
+		if (position < kept)
+		{
+			// Read again after a reset.
+			int n = (int) Math.min(len, kept - position);
+			if (spill != null)
+				n = spill.read(ByteBuffer.wrap(b, off, n), position);
+			else
+				System.arraycopy(buffer, (int) position, b, off, n);
+			position += n;
+			return n;
+		}
+		int n = in().read(b, off, len);
+		if (n > 0)
+		{
+			keep(b, off, n);
+			position += n;
+		}
+		return n;
+	}
+
+	private void keep(byte[] b, int off, int n) throws IOException
+	{
+		if (limit == 0)
+			return;
+		if (spill == null && kept + n > limit)
+		{
+			spillFile = File.createTempFile("levr-body", ".tmp", spillDir);
+			spill = FileChannel.open(spillFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			if (kept > 0)
+				write(ByteBuffer.wrap(buffer, 0, (int) kept), 0);
+			buffer = null;
+		}
+		if (spill != null)
+			write(ByteBuffer.wrap(b, off, n), kept);
+		else
+		{
+			if (buffer == null || kept + n > buffer.length)
+			{
+				byte[] grown = new byte[(int) Math.min(limit, Math.max(buffer == null ? 8192 : 2L * buffer.length, kept + n))];
+				if (buffer != null)
+					System.arraycopy(buffer, 0, grown, 0, (int) kept);
+				buffer = grown;
+			}
+			System.arraycopy(b, off, buffer, (int) kept, n);
+		}
+		kept += n;
+	}
+
+	private void write(ByteBuffer bytes, long at) throws IOException
+	{
+		while (bytes.hasRemaining())
+			at += spill.write(bytes, at);
+	}
+
+	@Override
+	public int available() throws IOException
+	{
+		if (position < kept)
+			return (int) Math.min(Integer.MAX_VALUE, kept - position);
+		return in().available();
+	}
+
+	@Override
+	public boolean markSupported()
+	{
+		return limit > 0;
+	}
+
+	/** Everything read is kept, so readlimit does not matter. */
+	@Override
+	public synchronized void mark(int readlimit)
+	{
+		mark = position;
+	}
+
+	@Override
+	public synchronized void reset() throws IOException
+	{
+		if (limit == 0)
+			throw new IOException("Request body is not kept, see -Dlevr.body.buffer.");
+		position = mark;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (in != null)
+			in.close();
+	}
+
+	/** Closes the stream and deletes what was kept on disk. */
+	void release()
+	{
+		try
+		{
+			close();
+			if (spill != null)
+				spill.close();
+		}
+		catch (IOException e)
+		{
+		}
+		finally
+		{
+			spill = null;
+			buffer = null;
+			kept = 0;
+			position = 0;
+			mark = 0;
+			if (spillFile != null)
+				spillFile.delete();
+			spillFile = null;
+		}
+	}
+}
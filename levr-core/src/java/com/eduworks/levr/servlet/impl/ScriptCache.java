@@ -0,0 +1,252 @@
+package com.eduworks.levr.servlet.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+
+import com.eduworks.resolver.Resolvable;
+import com.eduworks.resolver.ResolverCodec;
+
+/*
+ * Keeps the crunchers built from each script file on disk, so a restart with unchanged scripts rebuilds them
+ * from a compact binary form instead of running the parser and ResolverFactory again.
+ *
+ * An entry is found by the script's path and only used if the SHA-1 of the script's content and the set of
+ * registered crunchers and scripters, down to the jars or class files they come from, are the ones it was
+ * written with. Anything else, including an entry that cannot be read, falls back to parsing the script and
+ * writes a fresh entry. Entries are written to a temporary file and renamed into place, so concurrent
+ * loaders and crashes never leave a partial one.
+ *
+ * Entries are trusted to build crunchers, so the cache is off unless -Dlevr.script.cache names a directory,
+ * and a directory that is not owned by the user running the server, or that others may write to, is not
+ * used. A new directory is created readable by its owner only.
+ */
+final class ScriptCache
+{
+	private static final Logger log = Logger.getLogger(ScriptCache.class);
+	private static final int MAGIC = 0x4c657652;
+	private static final int VERSION = 2;
+	private static final File dir = directory(System.getProperty("levr.script.cache"));
+
+	private static volatile String fingerprint = null;
+
+	private ScriptCache()
+	{
+	}
+
+	private static File directory(String setting)
+	{
+		if (setting == null || setting.isEmpty() || "off".equals(setting))
+			return null;
+		File dir = new File(setting);
+		try
+		{
+			Path path = dir.toPath();
+			boolean posix = path.getFileSystem().supportedFileAttributeViews().contains("posix");
+			if (!Files.isDirectory(path))
+			{
+				if (posix)
+					Files.createDirectories(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+				else
+					Files.createDirectories(path);
+			}
+			String owner = Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).getName();
+			if (!owner.equals(System.getProperty("user.name")))
+			{
+				log.warn("Not using script cache " + dir.getPath() + ": it is owned by " + owner + ".");
+				return null;
+			}
+			if (posix)
+			{
+				Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS);
+				if (permissions.contains(PosixFilePermission.GROUP_WRITE) || permissions.contains(PosixFilePermission.OTHERS_WRITE))
+				{
+					log.warn("Not using script cache " + dir.getPath() + ": others may write to it.");
+					return null;
+				}
+			}
+			return dir;
+		}
+		catch (IOException e)
+		{
+			log.warn("Not using script cache " + dir.getPath() + ": " + e);
+			return null;
+		}
+	}
+
+	/** @return the Source for a script file, from the cache if it holds it. */
+	static ServiceRegistry.Source load(File codeFile) throws JSONException
+	{
+		if (dir == null)
+			return ConfigLoader.loadFile(codeFile);
+
+		String hash;
+		try
+		{
+			hash = hash(codeFile);
+		}
+		catch (IOException e)
+		{
+			return ConfigLoader.loadFile(codeFile);
+		}
+		File entry = new File(dir, sha1(codeFile.getAbsolutePath().getBytes()) + ".bin");
+
+		ServiceRegistry.Source source = read(entry, codeFile, hash);
+		if (source != null)
+			return source;
+
+		source = ConfigLoader.loadFile(codeFile);
+		try
+		{
+			// Only store what was parsed if the file did not change meanwhile.
+			if (hash.equals(hash(codeFile)))
+				write(entry, source, hash);
+		}
+		catch (IOException e)
+		{
+			log.debug("Not caching " + codeFile.getPath() + ": " + e.getMessage());
+		}
+		return source;
+	}
+
+	private static ServiceRegistry.Source read(File entry, File codeFile, String hash)
+	{
+		if (!entry.isFile())
+			return null;
+		// Taken before reading, so a change made meanwhile is picked up by the next reload.
+		ServiceRegistry.Source source = new ServiceRegistry.Source(codeFile);
+		DataInputStream in = null;
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return null;
+			if (!codeFile.getAbsolutePath().equals(in.readUTF()) || !hash.equals(in.readUTF()) || !fingerprint().equals(in.readUTF()))
+				return null;
+			ResolverCodec.Reader reader = new ResolverCodec.Reader(in);
+			readRoots(reader, in, source.services);
+			readRoots(reader, in, source.functions);
+			for (int i = in.readInt(); i > 0; i--)
+				source.lines.put(reader.readString(), in.readInt());
+			log.debug("Loaded from cache: " + codeFile.getPath());
+			return source;
+		}
+		catch (Exception e)
+		{
+			log.debug("Ignoring cache entry for " + codeFile.getPath() + ": " + e);
+			return null;
+		}
+		finally
+		{
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	private static void readRoots(ResolverCodec.Reader reader, DataInputStream in, Map<String, Resolvable> into) throws IOException,
+			JSONException
+	{
+		int size = in.readInt();
+		for (int i = 0; i < size; i++)
+		{
+			String name = reader.readString();
+			into.put(name, (Resolvable) reader.read());
+		}
+	}
+
+	private static void write(File entry, ServiceRegistry.Source source, String hash) throws IOException
+	{
+		if (!dir.isDirectory())
+			throw new IOException("Missing " + dir.getPath());
+		File temp = File.createTempFile(entry.getName(), ".tmp", dir);
+		DataOutputStream out = null;
+		try
+		{
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(source.file.getAbsolutePath());
+			out.writeUTF(hash);
+			out.writeUTF(fingerprint());
+			ResolverCodec.Writer writer = new ResolverCodec.Writer(out);
+			writeRoots(writer, out, source.services);
+			writeRoots(writer, out, source.functions);
+			out.writeInt(source.lines.size());
+			for (Map.Entry<String, Integer> e : source.lines.entrySet())
+			{
+				writer.writeString(e.getKey());
+				out.writeInt(e.getValue());
+			}
+			out.close();
+			out = null;
+			try
+			{
+				Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch (AtomicMoveNotSupportedException e)
+			{
+				Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		finally
+		{
+			IOUtils.closeQuietly(out);
+			if (temp.exists())
+				temp.delete();
+		}
+	}
+
+	private static void writeRoots(ResolverCodec.Writer writer, DataOutputStream out, Map<String, Resolvable> roots) throws IOException
+	{
+		out.writeInt(roots.size());
+		for (Map.Entry<String, Resolvable> e : roots.entrySet())
+		{
+			writer.writeString(e.getKey());
+			writer.write(e.getValue());
+		}
+	}
+
+	private static String fingerprint()
+	{
+		String f = fingerprint;
+		if (f == null)
+			fingerprint = f = ResolverCodec.registryFingerprint();
+		return f;
+	}
+
+	private static String hash(File file) throws IOException
+	{
+		return sha1(Files.readAllBytes(file.toPath()));
+	}
+
+	private static String sha1(byte[] bytes)
+	{
+		try
+		{
+			return ResolverCodec.toHex(MessageDigest.getInstance("SHA-1").digest(bytes));
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package com.eduworks.levr.servlet.impl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+import com.eduworks.resolver.Resolvable;
+
+/*
+ * Immutable snapshot of the web configuration: services, functions, the file each was loaded from and the
+ * router over them.
+ *
+ * A reload fills a Builder off to the side and LevrResolverServlet publishes the result with one volatile
+ * write, so requests never see a partially loaded configuration, never wait for a reload, and finish on the
+ * snapshot they started with.
+ *
+ * The registry remembers what each script file contributed, so a reload only has to reparse the files that
+ * changed and can hand the untouched Sources, and their crunchers, to the next registry as they are.
+ */
+public final class ServiceRegistry
+{
+	private static final Logger log = Logger.getLogger(ServiceRegistry.class);
+
+	public final Map<String, Resolvable> services;
+	public final Map<String, Resolvable> functions;
+	/** Name of the file each service (and '#' function) was loaded from. */
+	public final Map<String, String> sources;
+	/** Line each service (and '#' function) is declared on, where the file format tells. */
+	public final Map<String, Integer> lines;
+	/** What each script file contributed, by path. */
+	public final Map<String, Source> files;
+	/** Latest modification time of the files loaded. */
+	public final long lastModified;
+	public final ServiceRouter router;
+
+	/** The services and functions one script file contributed. Not modified once loaded. */
+	public static final class Source
+	{
+		public final File file;
+		public final long lastModified;
+		public final long length;
+		public final Map<String, Resolvable> services = new LinkedHashMap<String, Resolvable>();
+		public final Map<String, Resolvable> functions = new LinkedHashMap<String, Resolvable>();
+		/** Line each service and '#' function is declared on, where the file format tells. */
+		public final Map<String, Integer> lines = new HashMap<String, Integer>();
+
+		public Source(File file)
+		{
+			this.file = file;
+			this.lastModified = file.lastModified();
+			this.length = file.length();
+		}
+
+		/** @return true if the file has not changed since it was loaded. */
+		public boolean isCurrent(File file)
+		{
+			return file.lastModified() == lastModified && file.length() == length;
+		}
+	}
+
+	public ServiceRegistry(Map<String, Resolvable> services, Map<String, Resolvable> functions)
+	{
+		this.services = Collections.unmodifiableMap(new LinkedHashMap<String, Resolvable>(services));
+		this.functions = Collections.unmodifiableMap(new LinkedHashMap<String, Resolvable>(functions));
+		this.sources = Collections.emptyMap();
+		this.lines = Collections.emptyMap();
+		this.files = Collections.emptyMap();
+		this.lastModified = 0;
+		this.router = new ServiceRouter(this.services, this.functions, this.sources, this.lines);
+	}
+
+	private ServiceRegistry(Map<String, Source> files)
+	{
+		Map<String, Resolvable> services = new LinkedHashMap<String, Resolvable>();
+		Map<String, Resolvable> functions = new LinkedHashMap<String, Resolvable>();
+		Map<String, String> sources = new LinkedHashMap<String, String>();
+		Map<String, Integer> lines = new HashMap<String, Integer>();
+		long lastModified = 0;
+		Map<String, String> paths = new HashMap<String, String>();
+		for (Source source : files.values())
+		{
+			String path = source.file.getPath();
+			for (Map.Entry<String, Resolvable> e : source.services.entrySet())
+			{
+				if (services.put(e.getKey(), e.getValue()) != null)
+					log.warn("Service " + e.getKey() + " in " + path + " replaces the one in " + paths.get(e.getKey()));
+				sources.put(e.getKey(), source.file.getName());
+				line(lines, source, e.getKey());
+				paths.put(e.getKey(), path);
+			}
+			for (Map.Entry<String, Resolvable> e : source.functions.entrySet())
+			{
+				if (functions.put(e.getKey(), e.getValue()) != null)
+					log.warn("Function #" + e.getKey() + " in " + path + " replaces the one in " + paths.get("#" + e.getKey()));
+				sources.put("#" + e.getKey(), source.file.getName());
+				line(lines, source, "#" + e.getKey());
+				paths.put("#" + e.getKey(), path);
+			}
+			lastModified = Math.max(lastModified, source.lastModified);
+		}
+		this.services = Collections.unmodifiableMap(services);
+		this.functions = Collections.unmodifiableMap(functions);
+		this.sources = Collections.unmodifiableMap(sources);
+		this.lines = Collections.unmodifiableMap(lines);
+		this.files = Collections.unmodifiableMap(new TreeMap<String, Source>(files));
+		this.lastModified = lastModified;
+		this.router = new ServiceRouter(this.services, this.functions, this.sources, this.lines);
+	}
+
+	private static void line(Map<String, Integer> lines, Source source, String name)
+	{
+		Integer line = source.lines.get(name);
+		if (line == null)
+			lines.remove(name);
+		else
+			lines.put(name, line);
+	}
+
+	/** @return the files loaded, by path. */
+	public List<File> getFiles()
+	{
+		List<File> result = new ArrayList<File>();
+		for (Source source : files.values())
+			result.add(source.file);
+		return Collections.unmodifiableList(result);
+	}
+
+	/** Collects a configuration while it is being loaded. Not thread safe. */
+	public static final class Builder
+	{
+		/**
+		 * Sources by path. They are merged in path order, so where two define
+		 * the same name, the one with the greater path wins.
+		 */
+		public final Map<String, Source> files = new TreeMap<String, Source>();
+
+		public Builder()
+		{
+		}
+
+		/** Starts from everything in an existing registry. */
+		public Builder(ServiceRegistry from)
+		{
+			if (from != null)
+				files.putAll(from.files);
+		}
+
+		public ServiceRegistry build()
+		{
+			return new ServiceRegistry(files);
+		}
+	}
+}
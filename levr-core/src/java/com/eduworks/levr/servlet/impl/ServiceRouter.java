@@ -0,0 +1,174 @@
+package com.eduworks.levr.servlet.impl;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import com.eduworks.resolver.Resolvable;
+
+/*
+ * Immutable character trie over the names of web services and functions.
+ *
+ * A request is routed to the longest name that matches the whole request string or a prefix of it ending
+ * right before a '/', which is what LevrResolverServlet used to find by backing off a directory at a time.
+ * Services win over functions of the same name. Routing walks the request once, takes no lock and allocates
+ * nothing; the url remainder is whatever follows the matched name.
+ */
+public final class ServiceRouter
+{
+	/** A service or function the router can hand out. */
+	public static final class Route
+	{
+		public final String name;
+		public final Resolvable resolvable;
+		/** Name of the file the route was loaded from, or null. */
+		public final String source;
+		/** Line the route is declared on in that file, or 0 if not known. */
+		public final int line;
+
+		Route(String name, Resolvable resolvable, String source, Integer line)
+		{
+			this.name = name;
+			this.resolvable = resolvable;
+			this.source = source;
+			this.line = line == null ? 0 : line;
+		}
+
+		/** @return the part of a request string routed here that follows the name. */
+		public String remainder(String requestString)
+		{
+			if (requestString.length() == name.length())
+				return "";
+			return requestString.substring(name.length());
+		}
+	}
+
+	private static final class Node
+	{
+		char[] keys = new char[0];
+		Node[] next = new Node[0];
+		Route service;
+		Route function;
+
+		Node child(char c)
+		{
+			char[] k = keys;
+			int low = 0;
+			int high = k.length - 1;
+			while (low <= high)
+			{
+				int mid = (low + high) >>> 1;
+				if (k[mid] < c)
+					low = mid + 1;
+				else if (k[mid] > c)
+					high = mid - 1;
+				else
+					return next[mid];
+			}
+			return null;
+		}
+	}
+
+	private final Node root = new Node();
+
+	/**
+	 * @param sources
+	 *            file each service was loaded from, functions prefixed with
+	 *            '#'; may be null
+	 */
+	public ServiceRouter(Map<String, Resolvable> services, Map<String, Resolvable> functions, Map<String, String> sources)
+	{
+		this(services, functions, sources, null);
+	}
+
+	/**
+	 * @param lines
+	 *            line each service (and '#' function) is declared on; may be
+	 *            null
+	 */
+	public ServiceRouter(Map<String, Resolvable> services, Map<String, Resolvable> functions, Map<String, String> sources,
+			Map<String, Integer> lines)
+	{
+		TrieBuilder builder = new TrieBuilder();
+		if (services != null)
+			for (Entry<String, Resolvable> e : services.entrySet())
+				builder.add(e.getKey()).service = new Route(e.getKey(), e.getValue(), sources == null ? null : sources.get(e.getKey()),
+						lines == null ? null : lines.get(e.getKey()));
+		if (functions != null)
+			for (Entry<String, Resolvable> e : functions.entrySet())
+				builder.add(e.getKey()).function = new Route(e.getKey(), e.getValue(), sources == null ? null : sources.get("#" + e.getKey()),
+						lines == null ? null : lines.get("#" + e.getKey()));
+		builder.compile(root);
+	}
+
+	/**
+	 * @return the route with the longest name that is the request string or a
+	 *         prefix of it followed by '/', or null if there is none
+	 */
+	public Route route(String requestString, boolean useFunctions)
+	{
+		Route best = null;
+		Node node = root;
+		int length = requestString.length();
+		for (int i = 0; i < length; i++)
+		{
+			char c = requestString.charAt(i);
+			if (c == '/' && i > 0)
+			{
+				Route here = pick(node, useFunctions);
+				if (here != null)
+					best = here;
+			}
+			node = node.child(c);
+			if (node == null)
+				return best;
+		}
+		Route here = pick(node, useFunctions);
+		return here != null ? here : best;
+	}
+
+	private static Route pick(Node node, boolean useFunctions)
+	{
+		if (node.service != null)
+			return node.service;
+		return useFunctions ? node.function : null;
+	}
+
+	/** Mutable trie, compiled into sorted arrays once every name is in. */
+	private static final class TrieBuilder
+	{
+		final TreeMap<Character, TrieBuilder> children = new TreeMap<Character, TrieBuilder>();
+		Route service;
+		Route function;
+
+		TrieBuilder add(String name)
+		{
+			TrieBuilder node = this;
+			for (int i = 0; i < name.length(); i++)
+			{
+				Character c = name.charAt(i);
+				TrieBuilder child = node.children.get(c);
+				if (child == null)
+					node.children.put(c, child = new TrieBuilder());
+				node = child;
+			}
+			return node;
+		}
+
+		void compile(Node into)
+		{
+			into.service = service;
+			into.function = function;
+			into.keys = new char[children.size()];
+			into.next = new Node[children.size()];
+			int i = 0;
+			for (Entry<Character, TrieBuilder> e : children.entrySet())
+			{
+				into.keys[i] = e.getKey();
+				into.next[i] = new Node();
+				e.getValue().compile(into.next[i]);
+				i++;
+			}
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package com.eduworks.levr.servlet.impl;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.eduworks.resolver.LatencyHistogram;
+
+/*
+ * Latency of one web service or function, as seen by LevrResolverServlet.execute.
+ * Kept by name, so services sharing a tree are still reported apart.
+ */
+public class ServiceStats
+{
+	private static final ConcurrentHashMap<String, ServiceStats> stats = new ConcurrentHashMap<String, ServiceStats>();
+
+	public final LongAdder executions = new LongAdder();
+	public final LongAdder nanos = new LongAdder();
+	public final LatencyHistogram latency = new LatencyHistogram();
+
+	public static ServiceStats get(String service)
+	{
+		ServiceStats s = stats.get(service);
+		if (s == null)
+		{
+			ServiceStats created = new ServiceStats();
+			s = stats.putIfAbsent(service, created);
+			if (s == null)
+				s = created;
+		}
+		return s;
+	}
+
+	/** @return a sorted snapshot of every service executed so far. */
+	public static Map<String, ServiceStats> getAll()
+	{
+		return new TreeMap<String, ServiceStats>(stats);
+	}
+
+	void record(long elapsed)
+	{
+		executions.increment();
+		nanos.add(elapsed);
+		latency.record(elapsed);
+	}
+}
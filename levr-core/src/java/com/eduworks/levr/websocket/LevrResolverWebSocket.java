@@ -44,6 +44,7 @@ public class LevrResolverWebSocket
 	@OnMessage
 	public void onMessage(Session session, String message)
 	{
+		Context c = new Context();
 		try
 		{
 			JSONObject mObject = new JSONObject(message);
@@ -60,7 +61,7 @@ public class LevrResolverWebSocket
 					value = new String[] { val.toString() };
 			}
 			Object result = LevrResolverServlet
-					.execute(log, false, mObject.getString("function"), new Context(), map, new HashMap<String, InputStream>(), true);
+					.execute(log, false, mObject.getString("function"), c, map, new HashMap<String, InputStream>(), true);
 			if (result instanceof String)
 			{
 				session.getBasicRemote().sendText(result.toString());
@@ -116,6 +117,10 @@ public class LevrResolverWebSocket
 				e1.printStackTrace();
 			}
 		}
+		finally
+		{
+			c.close();
+		}
 	}
 
 	@OnError
@@ -0,0 +1,202 @@
+package com.eduworks.resolver;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Aggregated call tree per web service, turned on with -Dlevr.profile=true.
+ *
+ * The counters on Cruncher belong to an instance, which may be shared by several services. Here time is
+ * charged to the path a node was reached by instead: the service and the file and line it is declared on,
+ * then the key and function of every Cruncher or Scripter resolved on the way down. The script formats only
+ * keep positions for declarations, so below the root a node is placed by that path of keys. Self time is a node's time
+ * minus that of the children it resolved. Children resolved on parallel workers are charged to the node
+ * that scheduled them, so the self time of a parallel node is clamped at zero.
+ */
+public class CallTreeProfiler
+{
+	public static boolean enabled = Boolean.getBoolean("levr.profile");
+
+	private static final ConcurrentHashMap<String, Node> services = new ConcurrentHashMap<String, Node>();
+	private static final ThreadLocal<Frame> current = new ThreadLocal<Frame>();
+
+	/** One position in a service's call tree. */
+	public static final class Node
+	{
+		public final String name;
+		public final LongAdder calls = new LongAdder();
+		public final LongAdder nanosTotal = new LongAdder();
+		public final LongAdder nanosSelf = new LongAdder();
+		private final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<String, Node>();
+
+		Node(String name)
+		{
+			this.name = name;
+		}
+
+		Node child(String name)
+		{
+			Node child = children.get(name);
+			if (child == null)
+			{
+				Node created = new Node(name);
+				child = children.putIfAbsent(name, created);
+				if (child == null)
+					child = created;
+			}
+			return child;
+		}
+
+		/** @return a sorted snapshot of the children of this node. */
+		public Map<String, Node> getChildren()
+		{
+			return new TreeMap<String, Node>(children);
+		}
+	}
+
+	/** One resolution of a node, on the stack of the thread resolving it. */
+	public static final class Frame
+	{
+		final Node node;
+		final Frame parent;
+		final Frame previous;
+		final long start = System.nanoTime();
+		final AtomicLong childNanos = new AtomicLong(0);
+
+		Frame(Node node, Frame parent, Frame previous)
+		{
+			this.node = node;
+			this.parent = parent;
+			this.previous = previous;
+		}
+	}
+
+	/**
+	 * Starts profiling one request to a service.
+	 *
+	 * @param source
+	 *            file the service was loaded from, or null
+	 * @param line
+	 *            line the service is declared on, or 0 if not known
+	 * @return the frame to hand to {@link #exit(Frame)}, or null when
+	 *         profiling is off
+	 */
+	public static Frame begin(String service, String source, int line)
+	{
+		if (!enabled)
+			return null;
+		Node root = services.get(service);
+		if (root == null)
+		{
+			Node created = new Node(position(source, line) + service);
+			root = services.putIfAbsent(service, created);
+			if (root == null)
+				root = created;
+		}
+		return push(root, null);
+	}
+
+	private static String position(String source, int line)
+	{
+		if (source == null)
+			return "";
+		return line > 0 ? source + ":" + line + ":" : source + ":";
+	}
+
+	/** Enters a child of the node being resolved on this thread, if any. */
+	static Frame enter(String key, Resolvable child)
+	{
+		Frame parent = current.get();
+		if (parent == null)
+			return null;
+		String function;
+		if (child instanceof Cruncher)
+			function = ((Cruncher) child).getResolverName();
+		else if (child instanceof Scripter)
+			function = ((Scripter) child).getResolverName();
+		else
+			function = child.getClass().getSimpleName();
+		return push(parent.node.child(key + ":" + function), parent);
+	}
+
+	private static Frame push(Node node, Frame parent)
+	{
+		Frame frame = new Frame(node, parent, current.get());
+		current.set(frame);
+		return frame;
+	}
+
+	public static void exit(Frame frame)
+	{
+		if (frame == null)
+			return;
+		long elapsed = System.nanoTime() - frame.start;
+		frame.node.calls.increment();
+		frame.node.nanosTotal.add(elapsed);
+		frame.node.nanosSelf.add(Math.max(0, elapsed - frame.childNanos.get()));
+		if (frame.parent != null)
+			frame.parent.childNanos.addAndGet(elapsed);
+		restore(frame.previous);
+	}
+
+	/** @return the frame being resolved on this thread, to {@link #attach(Frame)} on another. */
+	static Frame current()
+	{
+		return current.get();
+	}
+
+	/** Resolves children of another thread's frame on this thread. @return the frame to restore. */
+	static Frame attach(Frame frame)
+	{
+		Frame previous = current.get();
+		current.set(frame);
+		return previous;
+	}
+
+	static void restore(Frame previous)
+	{
+		if (previous == null)
+			current.remove();
+		else
+			current.set(previous);
+	}
+
+	/** @return a sorted snapshot of the root of every service profiled so far. */
+	public static Map<String, Node> getServices()
+	{
+		return new TreeMap<String, Node>(services);
+	}
+
+	public static void reset()
+	{
+		services.clear();
+	}
+
+	/**
+	 * Writes every path in collapsed-stack format, one line per path with its
+	 * self time in microseconds, as read by flamegraph.pl and speedscope.
+	 */
+	public static void writeCollapsed(StringBuilder out, String only)
+	{
+		for (Map.Entry<String, Node> e : getServices().entrySet())
+			if (only == null || only.equals(e.getKey()))
+				writeCollapsed(out, new StringBuilder(), e.getValue());
+	}
+
+	private static void writeCollapsed(StringBuilder out, StringBuilder stack, Node node)
+	{
+		int length = stack.length();
+		if (length > 0)
+			stack.append(';');
+		stack.append(node.name.replace(';', ',').replace('\n', ' '));
+		long micros = node.nanosSelf.sum() / 1000;
+		if (micros > 0)
+			out.append(stack).append(' ').append(micros).append('\n');
+		for (Node child : node.getChildren().values())
+			writeCollapsed(out, stack, child);
+		stack.setLength(length);
+	}
+}
@@ -1,26 +1,139 @@
 package com.eduworks.resolver;
 
+import java.io.Closeable;
 import java.io.PrintStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import com.eduworks.lang.EwList;
+import org.apache.log4j.Logger;
+
 import com.eduworks.lang.EwMap;
 
-public class Context extends ConcurrentHashMap<String, Object>
+/*
+ * Variables of a request, shared by every cruncher that resolves it.
+ *
+ * The map itself only holds what was put since the context was last copied. Everything older sits in a
+ * chain of frozen frames, so copying a context for a new scope hands the copy the chain instead of copying
+ * every variable, and the copy still sees the variables as they were when it was made. Removing a variable
+ * that lives in a frame leaves a tombstone on top of it. Lookups and writes take no lock, unless they miss
+ * while variables are being moved between the map and the frames.
+ *
+ * Methods that look at the whole map (size, keySet, entrySet, iteration and the like) first fold the
+ * frames back into the map, so they behave as they always have.
+ *
+ * A context and its copies share one scope, which whoever created the context closes once the request is
+ * done; that runs the onFinalize events. A scope that becomes unreachable without being closed, and that
+ * has onFinalize events, is closed by a background thread and counted as leaked. Other contexts cost the
+ * garbage collector nothing extra.
+ */
+public class Context extends ConcurrentHashMap<String, Object> implements Closeable
 {
-	public boolean abort = false;
+	private static final long serialVersionUID = 1L;
+	private static final Logger log = Logger.getLogger(Context.class);
+
+	/** Stands for a variable removed from this context but still in a frame below it. */
+	private static final Object TOMBSTONE = new Object();
+	/** Frames chained before they are merged into one. */
+	private static final int MAX_DEPTH = 8;
+
+	/** Variables put before the last copy. Immutable. */
+	private static final class Frame
+	{
+		final Map<String, Object> values;
+		final Frame next;
+		final int depth;
+
+		Frame(Map<String, Object> values, Frame next)
+		{
+			this.values = values;
+			this.next = next;
+			this.depth = next == null ? 1 : next.depth + 1;
+		}
+
+		Object get(Object key)
+		{
+			for (Frame f = this; f != null; f = f.next)
+			{
+				Object o = f.values.get(key);
+				if (o != null)
+					return o;
+			}
+			return null;
+		}
+	}
+
+	/** What a context and its copies share until it is closed. */
+	private static final class Scope
+	{
+		final ConcurrentLinkedQueue<ContextEvent> finalizeEvents = new ConcurrentLinkedQueue<ContextEvent>();
+		final AtomicBoolean closed = new AtomicBoolean(false);
+		volatile Leak leak = null;
+		volatile boolean cancelled = false;
+	}
+
+	/** Closes a scope that was dropped without being closed. */
+	private static final class Leak extends PhantomReference<Object>
+	{
+		final Scope scope;
+
+		Leak(Object owner, Scope scope)
+		{
+			super(owner, leaks);
+			this.scope = scope;
+		}
+	}
+
+	private static final ReferenceQueue<Object> leaks = new ReferenceQueue<Object>();
+	/** Keeps the Leaks themselves reachable until they are enqueued or cleared. */
+	private static final Set<Leak> tracked = Collections.newSetFromMap(new ConcurrentHashMap<Leak, Boolean>());
+	private static final LongAdder leaked = new LongAdder();
+	private static Thread reaper = null;
+
+	/** Only referenced by the contexts of a scope, so it becomes unreachable when they all do. */
+	private final Object owner;
+	private final Scope scope;
+
+	private volatile Frame frozen = null;
+	private final Object freezing = new Object();
+	/** Odd while freeze, thaw or clear move variables between the map and the frames. */
+	private volatile long moving = 0;
+
+	public volatile boolean abort = false;
 
 	public boolean shouldAbort()
 	{
-		return abort;
+		return abort || scope.cancelled;
 	}
 
-	public Context()
+	/** Makes this context and all its copies abort, for instance when the request timed out. */
+	public void cancel()
 	{
+		scope.cancelled = true;
+	}
 
+	public Context()
+	{
+		owner = new Object();
+		scope = new Scope();
 	}
 
 	public HttpServletRequest request = null;
@@ -29,6 +142,8 @@ public class Context extends ConcurrentHashMap<String, Object>
 
 	public Context(HttpServletRequest request, HttpServletResponse response, PrintStream pw)
 	{
+		owner = new Object();
+		scope = new Scope();
 		this.request = request;
 		this.response = response;
 		this.pw = pw;
@@ -36,42 +151,444 @@ public class Context extends ConcurrentHashMap<String, Object>
 
 	public Context(Context c)
 	{
-		super(c);
+		frozen = c.freeze();
 		request=c.request;
 		response=c.response;
 		pw=c.pw;
 		successEvents = c.successEvents;
 		failureEvents = c.failureEvents;
 		finallyEvents = c.finallyEvents;
-		finalizeEvents = c.finalizeEvents;
+		owner = c.owner;
+		scope = c.scope;
 		filenames = c.filenames;
 	}
 
+	/**
+	 * Ends the scope of this context and its copies and runs its onFinalize
+	 * events. Only the first call does anything.
+	 */
 	@Override
-	protected void finalize() throws Throwable
+	public void close()
+	{
+		Scope s = scope;
+		Leak leak = s.leak;
+		if (leak != null)
+		{
+			tracked.remove(leak);
+			leak.clear();
+		}
+		runFinalizeEvents(s);
+	}
+
+	private static void runFinalizeEvents(Scope s)
+	{
+		if (!s.closed.compareAndSet(false, true))
+			return;
+		drainFinalizeEvents(s);
+	}
+
+	/** Runs the onFinalize events of a closed scope, each once, also those added while it runs. */
+	private static void drainFinalizeEvents(Scope s)
 	{
-		for (ContextEvent ce : finalizeEvents)
+		ContextEvent ce;
+		while ((ce = s.finalizeEvents.poll()) != null)
 			ce.go();
-		super.finalize();
 	}
 
-	public synchronized Object get(String s)
+	/** @return how many scopes with onFinalize events were dropped without being closed. */
+	public static long getLeaked()
+	{
+		return leaked.sum();
+	}
+
+	private static synchronized void startReaper()
 	{
-		return super.get(s);
+		if (reaper != null)
+			return;
+		reaper = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				while (true)
+				{
+					Leak leak;
+					try
+					{
+						leak = (Leak) leaks.remove();
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+					tracked.remove(leak);
+					if (leak.scope.closed.get())
+						continue;
+					leaked.increment();
+					try
+					{
+						runFinalizeEvents(leak.scope);
+					}
+					catch (Throwable t)
+					{
+						log.warn("onFinalize event of a context that was not closed failed.", t);
+					}
+				}
+			}
+		}, "levr-context-reaper");
+		reaper.setDaemon(true);
+		reaper.start();
 	}
 
-	public synchronized Object put(String s, Object o)
+	/**
+	 * Moves what was put since the last copy into a new frame.
+	 *
+	 * @return the frames, holding every variable of this context
+	 */
+	private Frame freeze()
+	{
+		if (super.isEmpty())
+			return frozen;
+		synchronized (freezing)
+		{
+			moving++;
+			try
+			{
+				// Not new HashMap(this): that would call size() and entrySet(), which thaw.
+				Map<String, Object> values = new HashMap<String, Object>();
+				for (Map.Entry<String, Object> e : super.entrySet())
+					values.put(e.getKey(), e.getValue());
+				Frame f = new Frame(values, frozen);
+				if (f.depth > MAX_DEPTH)
+					f = merge(f);
+				// Published before the values leave the map, so a lookup that misses in the map finds them here.
+				frozen = f;
+				for (Map.Entry<String, Object> e : values.entrySet())
+					super.remove(e.getKey(), e.getValue());
+				return f;
+			}
+			finally
+			{
+				moving++;
+			}
+		}
+	}
+
+	/** @return one frame with the variables of a chain, without tombstones. */
+	private static Frame merge(Frame top)
+	{
+		List<Frame> chain = new ArrayList<Frame>();
+		for (Frame f = top; f != null; f = f.next)
+			chain.add(f);
+		Map<String, Object> values = new HashMap<String, Object>();
+		for (int i = chain.size() - 1; i >= 0; i--)
+			for (Map.Entry<String, Object> e : chain.get(i).values.entrySet())
+				if (e.getValue() == TOMBSTONE)
+					values.remove(e.getKey());
+				else
+					values.put(e.getKey(), e.getValue());
+		return new Frame(values, null);
+	}
+
+	/** Folds the frames back into the map, for methods that look at all of it. */
+	private void thaw()
+	{
+		if (frozen == null)
+			return;
+		synchronized (freezing)
+		{
+			Frame f = frozen;
+			if (f == null)
+				return;
+			moving++;
+			try
+			{
+				for (; f != null; f = f.next)
+					for (Map.Entry<String, Object> e : f.values.entrySet())
+						super.putIfAbsent(e.getKey(), e.getValue());
+				frozen = null;
+				for (Map.Entry<String, Object> e : super.entrySet())
+					if (e.getValue() == TOMBSTONE)
+						super.remove(e.getKey(), TOMBSTONE);
+			}
+			finally
+			{
+				moving++;
+			}
+		}
+	}
+
+	/**
+	 * @return the value of a variable, from the map or else the frames, or a
+	 *         tombstone
+	 */
+	private Object lookup(Object key)
+	{
+		long stamp = moving;
+		Object o = super.get(key);
+		if (o != null)
+			return o;
+		Frame f = frozen;
+		if (f != null)
+			return f.get(key);
+		if ((stamp & 1) == 0 && stamp == moving)
+			return null;
+		// A thaw may have emptied the frames after the miss in the map: look again while nothing moves.
+		synchronized (freezing)
+		{
+			o = super.get(key);
+			f = frozen;
+			if (o == null && f != null)
+				o = f.get(key);
+			return o;
+		}
+	}
+
+	private static Object visible(Object o)
+	{
+		return o == TOMBSTONE ? null : o;
+	}
+
+	@Override
+	public Object get(Object key)
+	{
+		return visible(lookup(key));
+	}
+
+	public Object get(String s)
+	{
+		return get((Object) s);
+	}
+
+	@Override
+	public Object put(String s, Object o)
 	{
 		if (o == null)
 			return remove(s);
-		return super.put(s, o);
+		// Taken first: a thaw may empty the frames while the value goes in.
+		Frame before = frozen;
+		Object previous = super.put(s, o);
+		if (previous == null)
+		{
+			Frame f = frozen;
+			if (f == null)
+				f = before;
+			if (f != null)
+				previous = f.get(s);
+		}
+		return visible(previous);
+	}
+
+	@Override
+	public Object remove(Object key)
+	{
+		long stamp = moving;
+		Object previous = get(key);
+		unset(key);
+		if ((stamp & 1) == 0 && stamp == moving)
+			return previous;
+		// A freeze or thaw may have moved the variable meanwhile: hide it again while nothing moves.
+		synchronized (freezing)
+		{
+			unset(key);
+		}
+		return previous;
+	}
+
+	/** Hides a variable: drops it from the map, or shadows it with a tombstone if the frames hold it. */
+	private void unset(Object key)
+	{
+		Frame f = frozen;
+		if (f != null && visible(f.get(key)) != null)
+			super.put((String) key, TOMBSTONE);
+		else
+			super.remove(key);
+	}
+
+	@Override
+	public void putAll(Map<? extends String, ? extends Object> m)
+	{
+		for (Map.Entry<? extends String, ? extends Object> e : m.entrySet())
+			put(e.getKey(), e.getValue());
+	}
+
+	@Override
+	public boolean containsKey(Object key)
+	{
+		return get(key) != null;
+	}
+
+	@Override
+	public void clear()
+	{
+		synchronized (freezing)
+		{
+			moving++;
+			frozen = null;
+			super.clear();
+			moving++;
+		}
+	}
+
+	@Override
+	public boolean containsValue(Object value)
+	{
+		thaw();
+		return super.containsValue(value);
+	}
+
+	@Override
+	public int size()
+	{
+		thaw();
+		return super.size();
+	}
+
+	@Override
+	public boolean isEmpty()
+	{
+		thaw();
+		return super.isEmpty();
+	}
+
+	@Override
+	public long mappingCount()
+	{
+		thaw();
+		return super.mappingCount();
+	}
+
+	@Override
+	public KeySetView<String, Object> keySet()
+	{
+		thaw();
+		return super.keySet();
+	}
+
+	@Override
+	public Collection<Object> values()
+	{
+		thaw();
+		return super.values();
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet()
+	{
+		thaw();
+		return super.entrySet();
+	}
+
+	@Override
+	public Enumeration<String> keys()
+	{
+		thaw();
+		return super.keys();
+	}
+
+	@Override
+	public Enumeration<Object> elements()
+	{
+		thaw();
+		return super.elements();
+	}
+
+	@Override
+	public Object putIfAbsent(String key, Object value)
+	{
+		thaw();
+		return super.putIfAbsent(key, value);
+	}
+
+	@Override
+	public boolean remove(Object key, Object value)
+	{
+		thaw();
+		return super.remove(key, value);
+	}
+
+	@Override
+	public boolean replace(String key, Object oldValue, Object newValue)
+	{
+		thaw();
+		return super.replace(key, oldValue, newValue);
+	}
+
+	@Override
+	public Object replace(String key, Object value)
+	{
+		thaw();
+		return super.replace(key, value);
+	}
+
+	@Override
+	public Object compute(String key, BiFunction<? super String, ? super Object, ? extends Object> remappingFunction)
+	{
+		thaw();
+		return super.compute(key, remappingFunction);
+	}
+
+	@Override
+	public Object computeIfAbsent(String key, Function<? super String, ? extends Object> mappingFunction)
+	{
+		thaw();
+		return super.computeIfAbsent(key, mappingFunction);
+	}
+
+	@Override
+	public Object computeIfPresent(String key, BiFunction<? super String, ? super Object, ? extends Object> remappingFunction)
+	{
+		thaw();
+		return super.computeIfPresent(key, remappingFunction);
+	}
+
+	@Override
+	public Object merge(String key, Object value, BiFunction<? super Object, ? super Object, ? extends Object> remappingFunction)
+	{
+		thaw();
+		return super.merge(key, value, remappingFunction);
+	}
+
+	@Override
+	public void forEach(BiConsumer<? super String, ? super Object> action)
+	{
+		thaw();
+		super.forEach(action);
+	}
+
+	@Override
+	public void replaceAll(BiFunction<? super String, ? super Object, ? extends Object> function)
+	{
+		thaw();
+		super.replaceAll(function);
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		thaw();
+		return super.equals(o);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		thaw();
+		return super.hashCode();
+	}
+
+	@Override
+	public String toString()
+	{
+		thaw();
+		return super.toString();
 	}
 
-	EwList<ContextEvent> successEvents = new EwList<ContextEvent>();
-	EwList<ContextEvent> failureEvents = new EwList<ContextEvent>();
-	EwList<ContextEvent> finallyEvents = new EwList<ContextEvent>();
-	EwList<ContextEvent> finalizeEvents = new EwList<ContextEvent>();
-	public EwMap<String,String> filenames = new EwMap<String, String>();
+	// Children of a parallel cruncher add to these from several threads.
+	CopyOnWriteArrayList<ContextEvent> successEvents = new CopyOnWriteArrayList<ContextEvent>();
+	CopyOnWriteArrayList<ContextEvent> failureEvents = new CopyOnWriteArrayList<ContextEvent>();
+	CopyOnWriteArrayList<ContextEvent> finallyEvents = new CopyOnWriteArrayList<ContextEvent>();
+	public Map<String,String> filenames = Collections.synchronizedMap(new EwMap<String, String>());
 
 	public void onSuccess(ContextEvent c)
 	{
@@ -90,7 +607,25 @@ public class Context extends ConcurrentHashMap<String, Object>
 
 	public void onFinalize(ContextEvent c)
 	{
-		finalizeEvents.add(c);
+		Scope s = scope;
+		s.finalizeEvents.add(c);
+		// The scope is already over, or closed while the event went in.
+		if (s.closed.get())
+		{
+			drainFinalizeEvents(s);
+			return;
+		}
+		if (s.leak == null)
+			synchronized (s)
+			{
+				if (s.leak == null && !s.closed.get())
+				{
+					Leak leak = new Leak(owner, s);
+					tracked.add(leak);
+					s.leak = leak;
+					startReaper();
+				}
+			}
 	}
 
 	public void success()
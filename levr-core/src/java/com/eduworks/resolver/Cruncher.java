@@ -11,7 +11,8 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.log4j.Logger;
 import org.json.JSONArray;
@@ -35,13 +36,43 @@ import com.eduworks.resolver.exception.EditableRuntimeException;
  */
 public abstract class Cruncher implements Resolvable
 {
-	public AtomicLong nanosProcessing = new AtomicLong(0);
-	public AtomicLong nanosInside = new AtomicLong(0);
-	public AtomicLong executions = new AtomicLong(0);
+	/**
+	 * Timing of crunchers and services. Set -Dlevr.instrument=false to turn it
+	 * off.
+	 */
+	public static boolean instrument = !"false".equals(System.getProperty("levr.instrument"));
+
+	// Striped, so requests running the same tree do not contend on one counter.
+	public LongAdder nanosProcessing = new LongAdder();
+	public LongAdder nanosInside = new LongAdder();
+	public LongAdder executions = new LongAdder();
+	// Allocated on the first recording, so crunchers that never run (or run uninstrumented) do not carry one.
+	private volatile LatencyHistogram latency = null;
+	private static final AtomicReferenceFieldUpdater<Cruncher, LatencyHistogram> latencyUpdater = AtomicReferenceFieldUpdater.newUpdater(
+			Cruncher.class, LatencyHistogram.class, "latency");
 	public Map<String, Object> data = null;
 	public boolean resolverCompatibilityReplaceMode = true;
+	private volatile CruncherPlan plan = null;
 	public static Logger log = Logger.getLogger(Cruncher.class);
 
+	/** Records the duration of one execution, in nanoseconds. */
+	public void recordLatency(long nanos)
+	{
+		LatencyHistogram h = latency;
+		if (h == null)
+		{
+			latencyUpdater.compareAndSet(this, null, new LatencyHistogram());
+			h = latency;
+		}
+		h.record(nanos);
+	}
+
+	/** @return the durations recorded so far, or null if none were. */
+	public LatencyHistogram getLatency()
+	{
+		return latency;
+	}
+
 	protected JSONObject jo(Object... strings) throws JSONException
 	{
 		JSONObject jo = new JSONObject();
@@ -147,30 +178,48 @@ public abstract class Cruncher implements Resolvable
 	}
 
 	protected Object resolveAChild(String key, Context c, Map<String, String[]> parameters, Map<String, InputStream> dataStreams) throws JSONException
+	{
+		CruncherPlan p = linked();
+		CruncherPlan.Slot slot = p.findRaw(key);
+		if (slot == null)
+			return null;
+		return resolveSlot(p, slot, c, parameters, dataStreams);
+	}
+
+	Object resolveSlot(CruncherPlan p, CruncherPlan.Slot slot, Context c, Map<String, String[]> parameters, Map<String, InputStream> dataStreams)
+			throws JSONException
 	{
 		if (c.shouldAbort())
 			return null;
+		if (p.parallel && slot.kind != CruncherPlan.Slot.VALUE)
+		{
+			Object result = ParallelEvaluator.prefetched(this, slot);
+			if (result != ParallelEvaluator.NONE)
+				return result;
+		}
 		try
 		{
-			Object o = get(key);
-			if (o instanceof Cruncher)
+			if (slot.kind == CruncherPlan.Slot.CRUNCHER)
 			{
+				Cruncher cruncher = (Cruncher) slot.value;
+				if (!instrument)
+					return resolveAChild(c, parameters, dataStreams, slot.key, cruncher);
 				long nanos = System.nanoTime();
-				Cruncher cruncher = (Cruncher) o;
-				Object result = resolveAChild(c, parameters, dataStreams, key, cruncher);
+				Object result = resolveAChild(c, parameters, dataStreams, slot.key, cruncher);
 				long diff = System.nanoTime() - nanos;
-				cruncher.nanosProcessing.addAndGet(diff);
-				cruncher.nanosInside.addAndGet(diff);
-				cruncher.executions.incrementAndGet();
-				nanosProcessing.addAndGet(-diff);
+				cruncher.nanosProcessing.add(diff);
+				cruncher.nanosInside.add(diff);
+				cruncher.executions.increment();
+				cruncher.recordLatency(diff);
+				nanosProcessing.add(-diff);
 				return result;
 			}
-			if (o instanceof Scripter)
+			if (slot.kind == CruncherPlan.Slot.SCRIPTER)
 			{
-				Scripter scripter = (Scripter) o;
-				return resolveAChild(c, parameters, dataStreams, key, scripter);
+				Scripter scripter = (Scripter) slot.value;
+				return resolveAChild(c, parameters, dataStreams, slot.key, scripter);
 			}
-			return o;
+			return slot.value;
 		}
 		catch (EditableRuntimeException ex)
 		{
@@ -184,10 +233,18 @@ public abstract class Cruncher implements Resolvable
 	{
 		if (c.shouldAbort())
 			return null;
-		if (thing instanceof Cruncher)
-			return ((Cruncher) thing).resolve(c, parameters, dataStreams);
-		if (thing instanceof Scripter)
-			return ((Scripter) thing).resolve(c, parameters, dataStreams);
+		CallTreeProfiler.Frame frame = CallTreeProfiler.enabled ? CallTreeProfiler.enter(key, thing) : null;
+		try
+		{
+			if (thing instanceof Cruncher)
+				return ((Cruncher) thing).evaluate(c, parameters, dataStreams);
+			if (thing instanceof Scripter)
+				return ((Scripter) thing).resolve(c, parameters, dataStreams);
+		}
+		finally
+		{
+			CallTreeProfiler.exit(frame);
+		}
 		throw new RuntimeException("Don't understand how to resolve " + thing);
 	}
 
@@ -382,17 +439,60 @@ public abstract class Cruncher implements Resolvable
 		if (data == null)
 			data = new LinkedHashMap<String, Object>();
 		data.put(key, value);
+		plan = null;
 	}
 
-	protected Object get(String key, Context c, Map<String, String[]> parameters, Map<String, InputStream> dataStreams) throws JSONException
+	/**
+	 * Settles every key of this cruncher into its execution plan, so that
+	 * {@link #get(String, Context, Map, Map)} does no string building or map
+	 * probing per request. Called by {@link ResolverFactory} once the cruncher
+	 * is built; crunchers built by hand are linked lazily on first use.
+	 */
+	public void link()
 	{
-		if (has("_" + key))
-			key = "_" + key;
-		if (hasParam(key))
-			return getParameter(data.get(key).toString().substring(1), parameters);
+		plan = CruncherPlan.link(this);
+	}
 
-		Object obj = resolveAChild(key, c, parameters, dataStreams);
-		return obj;
+	CruncherPlan linked()
+	{
+		CruncherPlan p = plan;
+		if (p == null)
+			plan = p = CruncherPlan.link(this);
+		return p;
+	}
+
+	/**
+	 * Resolves this cruncher as a child or service root. If the cruncher is
+	 * {@link Parallelizable} or has the setting _parallel:"true", its children
+	 * are evaluated concurrently before {@link #resolve(Context, Map, Map)}
+	 * runs, so it takes as long as its slowest child instead of the sum. If it
+	 * has the setting _memoize:"true" and its subtree is {@link Pure}, results
+	 * are served from the {@link ResultCache}.
+	 */
+	public Object evaluate(Context c, Map<String, String[]> parameters, Map<String, InputStream> dataStreams) throws JSONException
+	{
+		CruncherPlan p = linked();
+		if (p.memoize)
+			return ResultCache.resolve(this, p, c, parameters, dataStreams);
+		return compute(p, c, parameters, dataStreams);
+	}
+
+	Object compute(CruncherPlan p, Context c, Map<String, String[]> parameters, Map<String, InputStream> dataStreams) throws JSONException
+	{
+		if (!p.parallel)
+			return resolve(c, parameters, dataStreams);
+		return ParallelEvaluator.resolve(this, p, c, parameters, dataStreams);
+	}
+
+	protected Object get(String key, Context c, Map<String, String[]> parameters, Map<String, InputStream> dataStreams) throws JSONException
+	{
+		CruncherPlan p = linked();
+		CruncherPlan.Slot slot = p.findNamed(key);
+		if (slot == null)
+			return null;
+		if (slot.kind == CruncherPlan.Slot.PARAMETER)
+			return getParameter((String) slot.value, parameters);
+		return resolveSlot(p, slot, c, parameters, dataStreams);
 	}
 
 	public static Object getParameter(String key, Map<String, String[]> parameters)
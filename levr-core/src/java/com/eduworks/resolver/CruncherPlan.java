@@ -0,0 +1,213 @@
+package com.eduworks.resolver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.json.JSONArray;
+
+/*
+ * Execution plan of a linked Cruncher.
+ *
+ * Built once by Cruncher.link() after the cruncher's keys have been built. Every key is settled up front:
+ * whether it is shadowed by its setting ("_key"), whether it is an "@param" reference, a child or a literal.
+ * Keys are interned so lookups from cruncher code (string literals) hit on identity without hashing.
+ */
+final class CruncherPlan
+{
+	private static final Slot[] NO_SLOTS = new Slot[0];
+	private static final String[] NO_READS = new String[0];
+	/** Above this many slots, lookups go through a hash map rather than a scan. */
+	private static final int SCAN_LIMIT = 8;
+
+	/** Setting that turns on parallel evaluation of a node's children, e.g. _parallel:"true". */
+	static final String PARALLEL = "_parallel";
+	/** Setting that caches the results of a pure subtree, e.g. _memoize:"true". */
+	static final String MEMOIZE = "_memoize";
+
+	/** Slots as seen through {@link Cruncher#get(String, Context, Map, Map)}, settings and parameters applied. */
+	final Slot[] named;
+	/** Slots as seen through {@link Cruncher#resolveAChild(String, Context, Map, Map)}, raw keys. */
+	final Slot[] raw;
+	/** Children are evaluated concurrently before the cruncher runs. See {@link ParallelEvaluator}. */
+	final boolean parallel;
+	/** This cruncher and every cruncher below it are {@link Pure}, and no scripter is involved. */
+	final boolean pure;
+	/** Results are cached by {@link ResultCache}. */
+	final boolean memoize;
+	/** Sorted names of every "@param" read anywhere in the subtree. */
+	final String[] reads;
+	/** Pure, and every input is a literal: the result can be computed once at load time. */
+	final boolean constant;
+	/** Slots by key, or null where there are few enough to scan. */
+	private final Map<String, Slot> namedIndex;
+	private final Map<String, Slot> rawIndex;
+
+	private CruncherPlan(Slot[] named, Slot[] raw, boolean parallel, boolean pure, boolean memoize, String[] reads, boolean constant)
+	{
+		this.named = named;
+		this.raw = raw;
+		this.parallel = parallel;
+		this.pure = pure;
+		this.memoize = memoize;
+		this.reads = reads;
+		this.constant = constant;
+		this.namedIndex = index(named);
+		this.rawIndex = index(raw);
+	}
+
+	private static Map<String, Slot> index(Slot[] slots)
+	{
+		if (slots.length <= SCAN_LIMIT)
+			return null;
+		Map<String, Slot> index = new HashMap<String, Slot>(slots.length * 2);
+		// First slot wins, as in the scan.
+		for (int i = slots.length - 1; i >= 0; i--)
+			index.put(slots[i].key, slots[i]);
+		return index;
+	}
+
+	/** @return the slot of a key as seen through get(), or null. */
+	Slot findNamed(String key)
+	{
+		return namedIndex != null ? namedIndex.get(key) : find(named, key);
+	}
+
+	/** @return the slot of a raw key, or null. */
+	Slot findRaw(String key)
+	{
+		return rawIndex != null ? rawIndex.get(key) : find(raw, key);
+	}
+
+	static final class Slot
+	{
+		static final int VALUE = 0;
+		static final int PARAMETER = 1;
+		static final int CRUNCHER = 2;
+		static final int SCRIPTER = 3;
+
+		final String key;
+		final int kind;
+		/** Literal, child Resolvable, or parameter name, depending on kind. */
+		final Object value;
+		/** Position of the raw key this slot reads. */
+		final int index;
+
+		Slot(String key, int index, Object value, boolean parameters)
+		{
+			this.key = key.intern();
+			this.index = index;
+			if (value instanceof Cruncher)
+				kind = CRUNCHER;
+			else if (value instanceof Scripter)
+				kind = SCRIPTER;
+			else if (parameters && value instanceof String && ((String) value).length() > 1 && ((String) value).charAt(0) == '@')
+			{
+				kind = PARAMETER;
+				value = ((String) value).substring(1);
+			}
+			else
+				kind = VALUE;
+			this.value = value;
+		}
+	}
+
+	private static Slot find(Slot[] slots, String key)
+	{
+		for (int i = 0; i < slots.length; i++)
+			if (slots[i].key == key)
+				return slots[i];
+		for (int i = 0; i < slots.length; i++)
+			if (slots[i].key.equals(key))
+				return slots[i];
+		return null;
+	}
+
+	static CruncherPlan link(Cruncher cruncher)
+	{
+		Map<String, Object> data = cruncher.data;
+		if (data == null || data.isEmpty())
+			return new CruncherPlan(NO_SLOTS, NO_SLOTS, false, cruncher instanceof Pure, false, NO_READS, cruncher instanceof Pure);
+
+		Map<String, Integer> indices = new HashMap<String, Integer>();
+		List<Slot> raw = new ArrayList<Slot>(data.size());
+		int children = 0;
+		boolean pure = cruncher instanceof Pure;
+		Set<String> reads = new TreeSet<String>();
+		for (Map.Entry<String, Object> e : data.entrySet())
+		{
+			Slot slot = new Slot(e.getKey(), raw.size(), e.getValue(), false);
+			indices.put(e.getKey(), slot.index);
+			raw.add(slot);
+			if (slot.kind == Slot.CRUNCHER || slot.kind == Slot.SCRIPTER)
+				children++;
+			if (slot.kind == Slot.CRUNCHER)
+			{
+				CruncherPlan child = ((Cruncher) slot.value).linked();
+				pure &= child.pure;
+				Collections.addAll(reads, child.reads);
+			}
+			else if (slot.kind == Slot.SCRIPTER || containsResolvable(slot.value))
+				pure = false;
+		}
+
+		List<Slot> named = new ArrayList<Slot>(data.size());
+		for (String key : data.keySet())
+		{
+			String target = target(data, key);
+			named.add(new Slot(key, indices.get(target), data.get(target), true));
+		}
+		// A setting with no plain counterpart is still reachable through its plain name.
+		for (String key : data.keySet())
+			if (Cruncher.isSetting(key) && !data.containsKey(key.substring(1)))
+				named.add(new Slot(key.substring(1), indices.get(key), data.get(key), true));
+		for (Slot slot : named)
+			if (slot.kind == Slot.PARAMETER)
+				reads.add((String) slot.value);
+
+		boolean parallel = children > 1 && (cruncher instanceof Parallelizable || isTrue(data.get(PARALLEL)));
+		boolean memoize = isTrue(data.get(MEMOIZE));
+		if (memoize && !pure)
+		{
+			Cruncher.log.warn("Not memoizing " + cruncher.getResolverName() + ": " + MEMOIZE + " requires every cruncher below it to be Pure.");
+			memoize = false;
+		}
+
+		boolean constant = pure && children == 0 && reads.isEmpty();
+
+		return new CruncherPlan(named.toArray(new Slot[named.size()]), raw.toArray(new Slot[raw.size()]), parallel, pure, memoize,
+				reads.toArray(new String[reads.size()]), constant);
+	}
+
+	/** Literal arrays may carry crunchers that the owning cruncher resolves by hand. */
+	private static boolean containsResolvable(Object value)
+	{
+		if (value instanceof Resolvable)
+			return true;
+		if (value instanceof JSONArray)
+		{
+			JSONArray array = (JSONArray) value;
+			for (int i = 0; i < array.length(); i++)
+				if (containsResolvable(array.opt(i)))
+					return true;
+		}
+		return false;
+	}
+
+	private static boolean isTrue(Object setting)
+	{
+		return setting != null && Boolean.parseBoolean(setting.toString());
+	}
+
+	/** The key that {@link Cruncher#get(String, Context, Map, Map)} actually reads for a given name. */
+	private static String target(Map<String, Object> data, String key)
+	{
+		if (data.containsKey("_" + key))
+			return "_" + key;
+		return key;
+	}
+}
@@ -0,0 +1,152 @@
+package com.eduworks.resolver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Lock-free log-linear histogram of durations in nanoseconds.
+ *
+ * Each power of two is split into 8 buckets, so percentiles are reported within 12.5% of the true value.
+ * Recording is one compare-and-set, plus one when the maximum grows. Once two threads collide, the histogram
+ * is striped by thread (as LongAdder does), so only histograms that are actually contended pay for stripes.
+ */
+public class LatencyHistogram
+{
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = 64 * SUB_BUCKETS;
+	private static final int STRIPES = Math.min(8, Integer.highestOneBit(Runtime.getRuntime().availableProcessors()));
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong max = new AtomicLong(0);
+	private volatile AtomicReferenceArray<AtomicLongArray> stripes = null;
+
+	public void record(long nanos)
+	{
+		if (nanos < 0)
+			nanos = 0;
+		int bucket = bucket(nanos);
+		AtomicReferenceArray<AtomicLongArray> s = stripes;
+		if (s == null)
+		{
+			long count = buckets.get(bucket);
+			if (!buckets.compareAndSet(bucket, count, count + 1))
+				stripe(bucket);
+		}
+		else
+			stripe(s).incrementAndGet(bucket);
+		long m = max.get();
+		while (nanos > m && !max.compareAndSet(m, nanos))
+			m = max.get();
+	}
+
+	private void stripe(int bucket)
+	{
+		AtomicReferenceArray<AtomicLongArray> s = stripes;
+		if (s == null)
+			synchronized (this)
+			{
+				s = stripes;
+				if (s == null)
+					stripes = s = new AtomicReferenceArray<AtomicLongArray>(STRIPES);
+			}
+		stripe(s).incrementAndGet(bucket);
+	}
+
+	private static AtomicLongArray stripe(AtomicReferenceArray<AtomicLongArray> s)
+	{
+		int i = (int) Thread.currentThread().getId() & (s.length() - 1);
+		AtomicLongArray stripe = s.get(i);
+		if (stripe == null)
+		{
+			s.compareAndSet(i, null, new AtomicLongArray(BUCKETS));
+			stripe = s.get(i);
+		}
+		return stripe;
+	}
+
+	private long[] counts()
+	{
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			counts[i] = buckets.get(i);
+		AtomicReferenceArray<AtomicLongArray> s = stripes;
+		if (s != null)
+			for (int j = 0; j < s.length(); j++)
+			{
+				AtomicLongArray stripe = s.get(j);
+				if (stripe != null)
+					for (int i = 0; i < BUCKETS; i++)
+						counts[i] += stripe.get(i);
+			}
+		return counts;
+	}
+
+	public long getCount()
+	{
+		long count = 0;
+		for (long c : counts())
+			count += c;
+		return count;
+	}
+
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	/**
+	 * @param quantile
+	 *            between 0 and 1, e.g. 0.99
+	 * @return upper bound of the bucket holding the quantile, in nanoseconds,
+	 *         or 0 if nothing was recorded
+	 */
+	public long getPercentile(double quantile)
+	{
+		long[] counts = counts();
+		long total = 0;
+		for (long c : counts)
+			total += c;
+		if (total == 0)
+			return 0;
+		long rank = (long) Math.ceil(quantile * total);
+		if (rank < 1)
+			rank = 1;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(upperBound(i), getMax());
+		}
+		return getMax();
+	}
+
+	public void reset()
+	{
+		for (int i = 0; i < BUCKETS; i++)
+			buckets.set(i, 0);
+		stripes = null;
+		max.set(0);
+	}
+
+	static int bucket(long nanos)
+	{
+		if (nanos < SUB_BUCKETS)
+			return (int) nanos;
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	static long upperBound(int bucket)
+	{
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		int sub = bucket % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BITS);
+		return ((long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS)) + width - 1;
+	}
+}
@@ -0,0 +1,217 @@
+package com.eduworks.resolver;
+
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONException;
+
+/*
+ * Evaluates the children of a parallel Cruncher concurrently, then runs the cruncher itself.
+ *
+ * Children are handed to a bounded pool, and the calling thread works through any child the pool has not
+ * picked up yet, so nested parallel crunchers never starve the pool. Results are parked in a per-thread frame
+ * and handed to the cruncher's first get() of each child; later reads of the same child resolve it again.
+ * The first child to fail cancels the siblings not yet started and its exception is rethrown to the caller.
+ * Workers carry the caller's CallTreeProfiler frame, so their time is charged to the right path.
+ *
+ * Pool size is set with -Dlevr.parallel.threads (default: 4 per core).
+ */
+final class ParallelEvaluator
+{
+	static final Object NONE = new Object();
+
+	private static final ThreadPoolExecutor executor;
+
+	static
+	{
+		int threads = Integer.getInteger("levr.parallel.threads", Runtime.getRuntime().availableProcessors() * 4);
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+		{
+			final AtomicInteger count = new AtomicInteger(0);
+
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "levr-parallel-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	private static final ThreadLocal<Frame> frames = new ThreadLocal<Frame>();
+
+	/** Children prefetched for one resolution of one cruncher. */
+	private static final class Frame
+	{
+		final Cruncher owner;
+		final Object[] results;
+		final Frame previous;
+
+		Frame(Cruncher owner, Object[] results, Frame previous)
+		{
+			this.owner = owner;
+			this.results = results;
+			this.previous = previous;
+		}
+	}
+
+	private ParallelEvaluator()
+	{
+	}
+
+	static Object resolve(final Cruncher cruncher, final CruncherPlan plan, final Context c, final Map<String, String[]> parameters,
+			final Map<String, InputStream> dataStreams) throws JSONException
+	{
+		if (c.shouldAbort())
+			return null;
+
+		Object[] results = prefetch(cruncher, plan, c, parameters, dataStreams);
+
+		Frame previous = frames.get();
+		frames.set(new Frame(cruncher, results, previous));
+		try
+		{
+			return cruncher.resolve(c, parameters, dataStreams);
+		}
+		finally
+		{
+			if (previous == null)
+				frames.remove();
+			else
+				frames.set(previous);
+		}
+	}
+
+	/** Hands out a prefetched child once, or {@link #NONE} if there is none to hand out. */
+	static Object prefetched(Cruncher cruncher, CruncherPlan.Slot slot)
+	{
+		for (Frame f = frames.get(); f != null; f = f.previous)
+			if (f.owner == cruncher)
+			{
+				Object result = f.results[slot.index];
+				f.results[slot.index] = NONE;
+				return result;
+			}
+		return NONE;
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static Object[] prefetch(final Cruncher cruncher, final CruncherPlan plan, final Context c, final Map<String, String[]> parameters,
+			final Map<String, InputStream> dataStreams) throws JSONException
+	{
+		CruncherPlan.Slot[] raw = plan.raw;
+		final CallTreeProfiler.Frame frame = CallTreeProfiler.current();
+		final FutureTask<Object>[] tasks = new FutureTask[raw.length];
+		for (int i = 0; i < raw.length; i++)
+		{
+			final CruncherPlan.Slot slot = raw[i];
+			if (slot.kind != CruncherPlan.Slot.CRUNCHER && slot.kind != CruncherPlan.Slot.SCRIPTER)
+				continue;
+			final int index = i;
+			tasks[i] = new FutureTask<Object>(new Callable<Object>()
+			{
+				@Override
+				public Object call() throws Exception
+				{
+					CallTreeProfiler.Frame previous = frame == null ? null : CallTreeProfiler.attach(frame);
+					try
+					{
+						return cruncher.resolveSlot(plan, slot, c, parameters, dataStreams);
+					}
+					catch (Exception ex)
+					{
+						cancel(tasks, index);
+						throw ex;
+					}
+					catch (Error ex)
+					{
+						cancel(tasks, index);
+						throw ex;
+					}
+					finally
+					{
+						if (frame != null)
+							CallTreeProfiler.restore(previous);
+					}
+				}
+			});
+			try
+			{
+				executor.execute(tasks[i]);
+			}
+			catch (RejectedExecutionException ex)
+			{
+				// Run on the calling thread below.
+			}
+		}
+
+		// Help out from the back of the list, the pool takes from the front.
+		for (int i = tasks.length - 1; i >= 0; i--)
+			if (tasks[i] != null)
+				if (c.shouldAbort())
+					tasks[i].cancel(false);
+				else
+					tasks[i].run();
+
+		Object[] results = new Object[raw.length];
+		for (int i = 0; i < tasks.length; i++)
+		{
+			if (tasks[i] == null)
+			{
+				results[i] = NONE;
+				continue;
+			}
+			try
+			{
+				results[i] = tasks[i].get();
+			}
+			catch (CancellationException ex)
+			{
+				// Aborted, or a sibling failed. The failure is rethrown when we get to it.
+				results[i] = null;
+			}
+			catch (InterruptedException ex)
+			{
+				cancel(tasks, -1);
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while resolving children of " + cruncher.getResolverName(), ex);
+			}
+			catch (ExecutionException ex)
+			{
+				cancel(tasks, i);
+				Throwable cause = ex.getCause();
+				if (cause instanceof JSONException)
+					throw (JSONException) cause;
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				if (cause instanceof Error)
+					throw (Error) cause;
+				throw new RuntimeException(cause);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Cancels the siblings that have not started. Running ones are not interrupted: one of them may be
+	 * running on the request thread, and an interrupt left on it would break its later I/O.
+	 */
+	private static void cancel(FutureTask<Object>[] tasks, int failed)
+	{
+		for (int i = 0; i < tasks.length; i++)
+			if (i != failed && tasks[i] != null)
+				tasks[i].cancel(false);
+	}
+}
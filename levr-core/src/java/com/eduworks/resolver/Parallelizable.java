@@ -0,0 +1,11 @@
+package com.eduworks.resolver;
+
+/**
+ * Marks a {@link Cruncher} whose children are independent of each other and
+ * are each read at most once per resolution. Such crunchers have their
+ * children evaluated concurrently. See {@link Cruncher#evaluate(Context, java.util.Map, java.util.Map)}.
+ */
+public interface Parallelizable
+{
+
+}
@@ -0,0 +1,13 @@
+package com.eduworks.resolver;
+
+/**
+ * Marks a {@link Cruncher} whose result depends only on its inputs: its
+ * literals, its children and the "@param" references in them. A pure cruncher
+ * does not read the Context, the data streams or the parameter map directly,
+ * and has no side effects, so its results may be cached or computed ahead of
+ * time.
+ */
+public interface Pure
+{
+
+}
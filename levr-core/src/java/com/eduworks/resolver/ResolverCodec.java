@@ -0,0 +1,363 @@
+package com.eduworks.resolver;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.eduworks.lang.json.impl.EwJsonArray;
+
+/*
+ * Compact binary form of built Cruncher and Scripter trees, so they can be stored and rebuilt without
+ * parsing the script or the JSON in between.
+ *
+ * Strings are written once and referred to by index afterwards. Literals keep their type. A Cruncher or
+ * Scripter reached twice is written once and referred to by index, so shared subtrees stay shared. Reading
+ * instantiates each node's class, builds it key by key and links it, as ResolverFactory.create does.
+ * Only classes registered with ResolverFactory are instantiated.
+ */
+public final class ResolverCodec
+{
+	private static final byte NULL = 0;
+	private static final byte JSON_NULL = 1;
+	private static final byte TRUE = 2;
+	private static final byte FALSE = 3;
+	private static final byte INT = 4;
+	private static final byte LONG = 5;
+	private static final byte DOUBLE = 6;
+	private static final byte STRING = 7;
+	private static final byte ARRAY = 8;
+	private static final byte CRUNCHER = 9;
+	private static final byte SCRIPTER = 10;
+	private static final byte NODE_REF = 11;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private ResolverCodec()
+	{
+	}
+
+	/**
+	 * @return a digest of every registered cruncher and scripter name and
+	 *         class, and of the jar or class file each class comes from, which
+	 *         changes whenever the registry or the code behind it does
+	 */
+	public static String registryFingerprint()
+	{
+		ResolverFactory.populateFactorySpecsDynamically();
+		Map<String, String> names = new TreeMap<String, String>();
+		Map<String, String> versions = new HashMap<String, String>();
+		if (ResolverFactory.cruncherSpecs != null)
+			for (Map.Entry<String, Class<? extends Cruncher>> e : ResolverFactory.cruncherSpecs.entrySet())
+				names.put("c:" + e.getKey(), e.getValue().getName() + " " + version(e.getValue(), versions));
+		if (ResolverFactory.scripterSpecs != null)
+			for (Map.Entry<String, Class<? extends Scripter>> e : ResolverFactory.scripterSpecs.entrySet())
+				names.put("s:" + e.getKey(), e.getValue().getName() + " " + version(e.getValue(), versions));
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			for (Map.Entry<String, String> e : names.entrySet())
+				digest.update((e.getKey() + "=" + e.getValue() + "\n").getBytes(UTF8));
+			return toHex(digest.digest());
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** @return where a class was loaded from, with the size and modification time of that jar or class file. */
+	private static String version(Class<?> c, Map<String, String> versions)
+	{
+		String name = c.getName();
+		URL url = c.getResource(name.substring(name.lastIndexOf('.') + 1) + ".class");
+		if (url == null)
+			return "?";
+		String location = url.toString();
+		File file = null;
+		try
+		{
+			if ("jar".equals(url.getProtocol()))
+			{
+				int bang = location.indexOf("!/");
+				location = bang < 0 ? location.substring(4) : location.substring(4, bang);
+				if (location.startsWith("file:"))
+					file = new File(new URI(location));
+			}
+			else if ("file".equals(url.getProtocol()))
+				file = new File(url.toURI());
+		}
+		catch (URISyntaxException e)
+		{
+			file = null;
+		}
+		catch (IllegalArgumentException e)
+		{
+			file = null;
+		}
+		String version = versions.get(location);
+		if (version == null)
+		{
+			version = file == null ? location : location + " " + file.length() + " " + file.lastModified();
+			versions.put(location, version);
+		}
+		return version;
+	}
+
+	public static String toHex(byte[] bytes)
+	{
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		return sb.toString();
+	}
+
+	/** Writes trees to one stream, sharing strings and nodes between them. */
+	public static final class Writer
+	{
+		private final DataOutputStream out;
+		private final Map<String, Integer> strings = new HashMap<String, Integer>();
+		private final Map<Object, Integer> nodes = new IdentityHashMap<Object, Integer>();
+
+		public Writer(DataOutputStream out)
+		{
+			this.out = out;
+		}
+
+		/**
+		 * @throws NotSerializableException
+		 *             if the tree holds a value that has no binary form
+		 */
+		public void write(Object value) throws IOException
+		{
+			if (value == null)
+				out.writeByte(NULL);
+			else if (value == JSONObject.NULL)
+				out.writeByte(JSON_NULL);
+			else if (value instanceof Boolean)
+				out.writeByte((Boolean) value ? TRUE : FALSE);
+			else if (value instanceof Integer)
+			{
+				out.writeByte(INT);
+				out.writeInt((Integer) value);
+			}
+			else if (value instanceof Long)
+			{
+				out.writeByte(LONG);
+				out.writeLong((Long) value);
+			}
+			else if (value instanceof Double)
+			{
+				out.writeByte(DOUBLE);
+				out.writeDouble((Double) value);
+			}
+			else if (value instanceof String)
+			{
+				out.writeByte(STRING);
+				writeString((String) value);
+			}
+			else if (value instanceof EwJsonArray)
+			{
+				JSONArray array = (JSONArray) value;
+				out.writeByte(ARRAY);
+				out.writeInt(array.length());
+				for (int i = 0; i < array.length(); i++)
+					write(array.opt(i));
+			}
+			else if (value instanceof Cruncher || value instanceof Scripter)
+				writeNode(value);
+			else
+				throw new NotSerializableException(value.getClass().getName());
+		}
+
+		public void writeString(String s) throws IOException
+		{
+			Integer index = strings.get(s);
+			if (index != null)
+				out.writeInt(index);
+			else
+			{
+				// writeUTF stops at 64k, which an embedded script can exceed.
+				byte[] bytes = s.getBytes(UTF8);
+				out.writeInt(-1);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+				strings.put(s, strings.size());
+			}
+		}
+
+		private void writeNode(Object node) throws IOException
+		{
+			Integer index = nodes.get(node);
+			if (index != null)
+			{
+				out.writeByte(NODE_REF);
+				out.writeInt(index);
+				return;
+			}
+			nodes.put(node, nodes.size());
+			Map<String, Object> data;
+			if (node instanceof Cruncher)
+			{
+				Cruncher cruncher = (Cruncher) node;
+				out.writeByte(CRUNCHER);
+				writeString(node.getClass().getName());
+				out.writeBoolean(cruncher.resolverCompatibilityReplaceMode);
+				data = cruncher.data;
+			}
+			else
+			{
+				Scripter scripter = (Scripter) node;
+				out.writeByte(SCRIPTER);
+				writeString(node.getClass().getName());
+				out.writeBoolean(scripter.resolverCompatibilityReplaceMode);
+				data = scripter.data;
+			}
+			out.writeInt(data == null ? 0 : data.size());
+			if (data != null)
+				for (Map.Entry<String, Object> e : data.entrySet())
+				{
+					writeString(e.getKey());
+					write(e.getValue());
+				}
+		}
+	}
+
+	/** Reads what a Writer wrote, in the same order. */
+	public static final class Reader
+	{
+		private final DataInputStream in;
+		private final List<String> strings = new ArrayList<String>();
+		private final List<Object> nodes = new ArrayList<Object>();
+		private final Map<String, Class<?>> classes = new HashMap<String, Class<?>>();
+
+		public Reader(DataInputStream in)
+		{
+			this.in = in;
+			if (ResolverFactory.cruncherSpecs != null)
+				for (Class<?> c : ResolverFactory.cruncherSpecs.values())
+					classes.put(c.getName(), c);
+			if (ResolverFactory.scripterSpecs != null)
+				for (Class<?> c : ResolverFactory.scripterSpecs.values())
+					classes.put(c.getName(), c);
+		}
+
+		public Object read() throws IOException, JSONException
+		{
+			byte tag = in.readByte();
+			switch (tag)
+			{
+			case NULL:
+				return null;
+			case JSON_NULL:
+				return JSONObject.NULL;
+			case TRUE:
+				return Boolean.TRUE;
+			case FALSE:
+				return Boolean.FALSE;
+			case INT:
+				return in.readInt();
+			case LONG:
+				return in.readLong();
+			case DOUBLE:
+				return in.readDouble();
+			case STRING:
+				return readString();
+			case ARRAY:
+			{
+				int length = in.readInt();
+				EwJsonArray array = new EwJsonArray();
+				for (int i = 0; i < length; i++)
+					array.put(read());
+				return array;
+			}
+			case CRUNCHER:
+			case SCRIPTER:
+				return readNode(tag);
+			case NODE_REF:
+			{
+				int index = in.readInt();
+				if (index < 0 || index >= nodes.size())
+					throw new StreamCorruptedException("Bad node reference " + index);
+				return nodes.get(index);
+			}
+			default:
+				throw new StreamCorruptedException("Bad tag " + tag);
+			}
+		}
+
+		public String readString() throws IOException
+		{
+			int index = in.readInt();
+			if (index == -1)
+			{
+				int length = in.readInt();
+				if (length < 0)
+					throw new StreamCorruptedException("Bad string length " + length);
+				byte[] bytes = new byte[length];
+				in.readFully(bytes);
+				String s = new String(bytes, UTF8);
+				strings.add(s);
+				return s;
+			}
+			if (index < 0 || index >= strings.size())
+				throw new StreamCorruptedException("Bad string reference " + index);
+			return strings.get(index);
+		}
+
+		private Object readNode(byte tag) throws IOException, JSONException
+		{
+			String className = readString();
+			Class<?> c = classes.get(className);
+			if (c == null || !(tag == CRUNCHER ? Cruncher.class : Scripter.class).isAssignableFrom(c))
+				throw new StreamCorruptedException("Not a registered " + (tag == CRUNCHER ? "cruncher" : "scripter") + ": " + className);
+			Resolvable node;
+			try
+			{
+				node = ResolverFactory.constructor(c.asSubclass(Resolvable.class)).newInstance();
+			}
+			catch (InvocationTargetException e)
+			{
+				throw new StreamCorruptedException("Cannot instantiate " + className + ": " + e.getCause());
+			}
+			catch (ReflectiveOperationException e)
+			{
+				throw new StreamCorruptedException("Cannot instantiate " + className + ": " + e.getMessage());
+			}
+			nodes.add(node);
+			boolean replaceMode = in.readBoolean();
+			if (node instanceof Cruncher)
+				((Cruncher) node).resolverCompatibilityReplaceMode = replaceMode;
+			else
+				((Scripter) node).resolverCompatibilityReplaceMode = replaceMode;
+			int size = in.readInt();
+			for (int i = 0; i < size; i++)
+			{
+				String key = readString();
+				node.build(key, read());
+			}
+			if (node instanceof Cruncher)
+				((Cruncher) node).link();
+			return node;
+		}
+	}
+}
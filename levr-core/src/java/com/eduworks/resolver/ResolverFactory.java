@@ -1,13 +1,35 @@
 package com.eduworks.resolver;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
 import java.util.Set;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.apache.log4j.Logger;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -28,6 +50,7 @@ public class ResolverFactory
 {
 	public static Map<String, Class<? extends Cruncher>> cruncherSpecs = null;
 	public static Map<String, Class<? extends Scripter>> scripterSpecs = null;
+	public static Logger log = Logger.getLogger(ResolverFactory.class);
 
 	// static { populateFactorySpecsDynamically(); }
 
@@ -40,7 +63,7 @@ public class ResolverFactory
 
 		JSONObject jo = EwJson.getInstanceOfJsonObject(o);
 		if (jo != null)
-			return create(jo);
+			return fold(create(jo));
 
 		if (o instanceof Cruncher)
 			return create((Cruncher) o);
@@ -65,6 +88,39 @@ public class ResolverFactory
 		return c;
 	}
 
+	/**
+	 * Replaces a {@link Pure} cruncher whose inputs are all literals with its
+	 * result, so it is not recomputed on every request. Only immutable results
+	 * are folded; anything else, including failures, leaves the cruncher as is.
+	 */
+	private static Object fold(Resolvable r)
+	{
+		if (!(r instanceof Cruncher))
+			return r;
+		Cruncher cruncher = (Cruncher) r;
+		if (!cruncher.linked().constant)
+			return r;
+		Context c = new Context();
+		try
+		{
+			Object result = cruncher.evaluate(c, new HashMap<String, String[]>(), new HashMap<String, InputStream>());
+			if (result instanceof Number || result instanceof Boolean)
+				return result;
+			// A folded "@name" would be read back as a parameter reference.
+			if (result instanceof String && !((String) result).startsWith("@"))
+				return result;
+		}
+		catch (Throwable t)
+		{
+			log.debug("Not folding " + cruncher.getResolverName() + ": " + t.getMessage());
+		}
+		finally
+		{
+			c.close();
+		}
+		return r;
+	}
+
 	@SuppressWarnings("rawtypes")
 	public static Resolvable create(JSONObject obj) throws JSONException
 	{
@@ -83,13 +139,112 @@ public class ResolverFactory
 
 			r.build(key, cast(obj.get(key)));
 		}
+		if (r instanceof Cruncher)
+			((Cruncher) r).link();
+		return r;
+	}
+
+	/**
+	 * Builds the resolvable for one call of a function, with the parameters
+	 * as its values, as {@link #create(JSONObject)} does for a JSON object
+	 * holding them. The resolver is found through the spec cache and no JSON
+	 * object is built on the way.
+	 */
+	static Resolvable create(String function, Map<String, String[]> parameters) throws JSONException
+	{
+		Resolvable r = getCorrectResolver(function);
+		for (Map.Entry<String, String[]> e : parameters.entrySet())
+			if (e.getValue() != null && !"function".equals(e.getKey()))
+				r.build(e.getKey(), cast(e.getValue()));
+		if (r instanceof Cruncher)
+			((Cruncher) r).link();
 		return r;
 	}
 
+	/**
+	 * Finds the crunchers and scripters. They are read from the
+	 * META-INF/services index ResolverIndexProcessor writes at build time.
+	 * Jars and class directories without an index (built without the
+	 * processor, e.g. by an IDE or with -proc:none) are searched for
+	 * subclasses of Cruncher and Scripter by reading their class files, with
+	 * a warning. The whole classpath is scanned with Reflections if no index
+	 * is found, or always with -Dlevr.resolvers.scan=true.
+	 */
 	public static synchronized void populateFactorySpecsDynamically()
 	{
 		if (cruncherSpecs != null)
 			return;
+		Map<String, Class<? extends Cruncher>> crunchers = new SpecMap<Class<? extends Cruncher>>();
+		Map<String, Class<? extends Scripter>> scripters = new SpecMap<Class<? extends Scripter>>();
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		if (loader == null)
+			loader = ResolverFactory.class.getClassLoader();
+		loadIndex(loader, crunchers, scripters);
+		EwSet<URL> urls = classpath();
+		if (Boolean.getBoolean("levr.resolvers.scan") || (crunchers.isEmpty() && scripters.isEmpty()))
+			scanClasspath(urls, crunchers, scripters);
+		else
+		{
+			scanUnindexed(loader, urls, crunchers, scripters);
+		}
+		System.out.println(new HashSet<Class<?>>(crunchers.values()).size() + " Crunchers.");
+		System.out.println(new HashSet<Class<?>>(scripters.values()).size() + " Scripters.");
+		System.out.println("Free Memory - " + ((Runtime.getRuntime().freeMemory() / 1024) / 1024));
+		System.out.println("Total Memory - " + ((Runtime.getRuntime().totalMemory() / 1024) / 1024));
+		System.out.println("Max Memory - " + ((Runtime.getRuntime().maxMemory() / 1024) / 1024));
+		System.out.println("Available CPU - " + (Runtime.getRuntime().availableProcessors()));
+		scripterSpecs = scripters;
+		cruncherSpecs = crunchers;
+	}
+
+	private static void loadIndex(ClassLoader loader, Map<String, Class<? extends Cruncher>> crunchers, Map<String, Class<? extends Scripter>> scripters)
+	{
+		Iterator<Cruncher> ci = ServiceLoader.load(Cruncher.class, loader).iterator();
+		while (true)
+		{
+			try
+			{
+				if (!ci.hasNext())
+					break;
+				register(ci.next(), crunchers);
+			}
+			catch (ServiceConfigurationError e)
+			{
+				// A stale entry, or a cruncher whose dependencies are missing.
+				log.warn("Skipping cruncher: " + e.getMessage());
+			}
+		}
+		Iterator<Scripter> si = ServiceLoader.load(Scripter.class, loader).iterator();
+		while (true)
+		{
+			try
+			{
+				if (!si.hasNext())
+					break;
+				Scripter scripter = si.next();
+				for (String key : scripter.getResolverNames())
+					scripters.put(key, scripter.getClass());
+			}
+			catch (ServiceConfigurationError e)
+			{
+				log.warn("Skipping scripter: " + e.getMessage());
+			}
+		}
+		log.debug("Indexed " + crunchers.size() + " cruncher and " + scripters.size() + " scripter names.");
+	}
+
+	private static void register(Cruncher cruncher, Map<String, Class<? extends Cruncher>> crunchers)
+	{
+		for (String s : cruncher.getResolverNames())
+		{
+			Class<? extends Cruncher> existing = crunchers.put(s, cruncher.getClass());
+			if (existing != null && existing != cruncher.getClass())
+				System.out.println("Duplicate Cruncher Found: " + s);
+		}
+	}
+
+	private static EwSet<URL> classpath()
+	{
 		Collection<URL> urlsForCurrentClasspath = new ArrayList<URL>(ClasspathHelper.forManifest());
 		urlsForCurrentClasspath.addAll(ClasspathHelper.forJavaClassPath());
 		urlsForCurrentClasspath.addAll(ClasspathHelper.forClassLoader());
@@ -99,7 +254,316 @@ public class ResolverFactory
 			if (!url.toString().contains("icu4j"))
 				urls.add(url);
 		}
-		System.out.println(urls.toString());
+		return urls;
+	}
+
+	/**
+	 * Registers the crunchers and scripters in the classpath roots that have
+	 * no index. Which classes those are is decided by their superclass chain,
+	 * read from the class file headers, so nothing is loaded unless it turns
+	 * out to be a resolver, and the roots of Cruncher and Scripter themselves,
+	 * which define none, are not read.
+	 */
+	private static void scanUnindexed(ClassLoader loader, EwSet<URL> urls, Map<String, Class<? extends Cruncher>> crunchers,
+			Map<String, Class<? extends Scripter>> scripters)
+	{
+		Set<String> indexed = new HashSet<String>();
+		for (String index : new String[] { "META-INF/services/" + Cruncher.class.getName(), "META-INF/services/" + Scripter.class.getName() })
+			try
+			{
+				Enumeration<URL> found = loader.getResources(index);
+				while (found.hasMoreElements())
+					indexed.add(root(found.nextElement(), index));
+			}
+			catch (IOException e)
+			{
+				log.warn("Cannot read " + index + ": " + e.getMessage());
+			}
+		for (Class<?> base : new Class<?>[] { Cruncher.class, Scripter.class })
+		{
+			String resource = base.getName().replace('.', '/') + ".class";
+			URL url = base.getClassLoader() == null ? null : base.getClassLoader().getResource(resource);
+			if (url != null)
+				indexed.add(root(url, resource));
+		}
+
+		// Internal names: superclass by class, and the root each concrete class is in.
+		Map<String, String> supers = new HashMap<String, String>();
+		Map<String, URL> concrete = new HashMap<String, URL>();
+		for (URL url : urls)
+			if ("file".equals(url.getProtocol()) && !indexed.contains(location(url)))
+				readHeaders(url, supers, concrete);
+
+		Map<String, Class<?>> bases = new HashMap<String, Class<?>>();
+		Map<URL, Integer> found = new HashMap<URL, Integer>();
+		for (Map.Entry<String, URL> e : concrete.entrySet())
+		{
+			Class<?> base = base(e.getKey(), supers, bases, loader);
+			if (base == null)
+				continue;
+			String name = e.getKey().replace('/', '.');
+			try
+			{
+				Class<?> c = Class.forName(name, false, loader);
+				Resolvable r = constructor(c.asSubclass(Resolvable.class)).newInstance();
+				if (base == Cruncher.class)
+					register((Cruncher) r, crunchers);
+				else
+					for (String key : ((Scripter) r).getResolverNames())
+						scripters.put(key, ((Scripter) r).getClass());
+				Integer n = found.get(e.getValue());
+				found.put(e.getValue(), n == null ? 1 : n + 1);
+			}
+			catch (NoSuchMethodException ex)
+			{
+				// Not meant to be created by name.
+			}
+			catch (InvocationTargetException ex)
+			{
+				log.warn("Skipping " + name + ": " + ex.getCause());
+			}
+			catch (ReflectiveOperationException ex)
+			{
+				log.debug("Skipping " + name + ": " + ex);
+			}
+			catch (LinkageError ex)
+			{
+				log.warn("Skipping " + name + ": " + ex);
+			}
+		}
+		for (Map.Entry<URL, Integer> e : found.entrySet())
+			log.warn("No cruncher index in " + e.getKey() + ", found " + e.getValue() + " resolvers by reading its classes. Build it with "
+					+ ResolverIndexProcessor.class.getSimpleName() + " to skip that.");
+	}
+
+	/**
+	 * @return Cruncher or Scripter if the class extends it, else null. A
+	 *         superclass outside the roots read is loaded, without being
+	 *         initialized, to look at it.
+	 */
+	private static Class<?> base(String name, Map<String, String> supers, Map<String, Class<?>> bases, ClassLoader loader)
+	{
+		String cruncher = Cruncher.class.getName().replace('.', '/');
+		String scripter = Scripter.class.getName().replace('.', '/');
+		String s = supers.get(name);
+		for (int steps = 0; s != null && steps <= supers.size(); steps++)
+		{
+			if (s.equals(cruncher))
+				return Cruncher.class;
+			if (s.equals(scripter))
+				return Scripter.class;
+			if (!supers.containsKey(s))
+				return external(s, bases, loader);
+			s = supers.get(s);
+		}
+		return null;
+	}
+
+	private static Class<?> external(String name, Map<String, Class<?>> bases, ClassLoader loader)
+	{
+		if (name.startsWith("java/") || name.startsWith("javax/"))
+			return null;
+		if (bases.containsKey(name))
+			return bases.get(name);
+		Class<?> base = null;
+		try
+		{
+			Class<?> c = Class.forName(name.replace('/', '.'), false, loader);
+			if (Cruncher.class.isAssignableFrom(c))
+				base = Cruncher.class;
+			else if (Scripter.class.isAssignableFrom(c))
+				base = Scripter.class;
+		}
+		catch (ClassNotFoundException e)
+		{
+		}
+		catch (LinkageError e)
+		{
+		}
+		bases.put(name, base);
+		return base;
+	}
+
+	/** Reads the superclass of every class in a jar or class directory, and which of them are concrete. */
+	private static void readHeaders(URL url, Map<String, String> supers, Map<String, URL> concrete)
+	{
+		File file = new File(location(url));
+		if (file.isDirectory())
+		{
+			readHeaders(url, file, supers, concrete);
+			return;
+		}
+		if (!file.isFile())
+			return;
+		JarFile jar = null;
+		try
+		{
+			jar = new JarFile(file);
+			Enumeration<JarEntry> entries = jar.entries();
+			while (entries.hasMoreElements())
+			{
+				JarEntry entry = entries.nextElement();
+				if (!entry.getName().endsWith(".class") || entry.getName().startsWith("META-INF/"))
+					continue;
+				InputStream in = jar.getInputStream(entry);
+				try
+				{
+					readHeader(url, in, supers, concrete);
+				}
+				finally
+				{
+					in.close();
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			log.debug("Cannot read " + file + ": " + e.getMessage());
+		}
+		finally
+		{
+			if (jar != null)
+				try
+				{
+					jar.close();
+				}
+				catch (IOException e)
+				{
+				}
+		}
+	}
+
+	private static void readHeaders(URL url, File dir, Map<String, String> supers, Map<String, URL> concrete)
+	{
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (File f : files)
+			if (f.isDirectory())
+				readHeaders(url, f, supers, concrete);
+			else if (f.getName().endsWith(".class"))
+				try
+				{
+					InputStream in = new FileInputStream(f);
+					try
+					{
+						readHeader(url, new BufferedInputStream(in), supers, concrete);
+					}
+					finally
+					{
+						in.close();
+					}
+				}
+				catch (IOException e)
+				{
+					log.debug("Cannot read " + f + ": " + e.getMessage());
+				}
+	}
+
+	private static final int ACC_INTERFACE = 0x0200;
+	private static final int ACC_ABSTRACT = 0x0400;
+
+	/** Reads a class file up to its superclass: the constant pool, access flags, this class and super class. */
+	private static void readHeader(URL url, InputStream stream, Map<String, String> supers, Map<String, URL> concrete) throws IOException
+	{
+		DataInputStream in = new DataInputStream(stream);
+		if (in.readInt() != 0xCAFEBABE)
+			return;
+		in.readUnsignedShort();
+		in.readUnsignedShort();
+		int count = in.readUnsignedShort();
+		String[] utf8 = new String[count];
+		int[] classes = new int[count];
+		for (int i = 1; i < count; i++)
+		{
+			int tag = in.readUnsignedByte();
+			switch (tag)
+			{
+			case 1:
+				utf8[i] = in.readUTF();
+				break;
+			case 7:
+				classes[i] = in.readUnsignedShort();
+				break;
+			case 8:
+			case 16:
+			case 19:
+			case 20:
+				in.readUnsignedShort();
+				break;
+			case 15:
+				in.readUnsignedByte();
+				in.readUnsignedShort();
+				break;
+			case 3:
+			case 4:
+			case 9:
+			case 10:
+			case 11:
+			case 12:
+			case 17:
+			case 18:
+				in.readInt();
+				break;
+			case 5:
+			case 6:
+				in.readLong();
+				i++;
+				break;
+			default:
+				return;
+			}
+		}
+		int access = in.readUnsignedShort();
+		String name = utf8[classes[in.readUnsignedShort()]];
+		int superIndex = in.readUnsignedShort();
+		if (name == null || superIndex == 0)
+			return;
+		supers.put(name, utf8[classes[superIndex]]);
+		if ((access & (ACC_INTERFACE | ACC_ABSTRACT)) == 0)
+			concrete.put(name, url);
+	}
+
+	/** @return the jar or directory a resource was found in, as {@link #location(URL)} gives it. */
+	private static String root(URL resource, String name)
+	{
+		String s = resource.toString();
+		if (s.startsWith("jar:"))
+		{
+			int bang = s.indexOf("!/");
+			s = bang < 0 ? s.substring(4) : s.substring(4, bang);
+		}
+		else if (s.endsWith(name))
+			s = s.substring(0, s.length() - name.length());
+		try
+		{
+			return location(new URL(s));
+		}
+		catch (MalformedURLException e)
+		{
+			return s;
+		}
+	}
+
+	private static String location(URL url)
+	{
+		if ("file".equals(url.getProtocol()))
+			try
+			{
+				return new File(url.toURI()).getAbsolutePath();
+			}
+			catch (URISyntaxException e)
+			{
+			}
+			catch (IllegalArgumentException e)
+			{
+			}
+		return url.toString();
+	}
+
+	private static void scanClasspath(EwSet<URL> urls, Map<String, Class<? extends Cruncher>> crunchers, Map<String, Class<? extends Scripter>> scripters)
+	{
+		log.debug(urls.toString());
 		System.out.println("We are now going to scan for any Resolvers, Crunchers, or Scripters.");
 		List<ClassLoader> classLoadersList = new ArrayList<ClassLoader>();
 		classLoadersList.add(ClasspathHelper.contextClassLoader());
@@ -120,22 +584,13 @@ public class ResolverFactory
 					}
 				}), new ResourcesScanner()));
 		System.out.println("Finished Scanning. Getting subtypes and initializing classes.");
-		int crunchers = 0, scripters = 0;
 		Set<Class<? extends Cruncher>> csubTypesOf = reflections.getSubTypesOf(Cruncher.class);
-		cruncherSpecs = new EwMap<String, Class<? extends Cruncher>>();
 
 		for (Class<? extends Cruncher> c : csubTypesOf)
 		{
 			try
 			{
-				Cruncher newInstance = c.newInstance();
-				for (String s : newInstance.getResolverNames())
-				{
-					if (cruncherSpecs.containsKey(s))
-						System.out.println("Duplicate Cruncher Found: " + s);
-					cruncherSpecs.put(s, c);
-				}
-				crunchers++;
+				register(c.newInstance(), crunchers);
 			}
 			catch (InstantiationException ex)
 			{
@@ -154,10 +609,7 @@ public class ResolverFactory
 			}
 		}
 
-		System.out.println(crunchers + " Crunchers.");
-
 		Set<Class<? extends Scripter>> ssubTypesOf = reflections.getSubTypesOf(Scripter.class);
-		scripterSpecs = new EwMap<String, Class<? extends Scripter>>();
 
 		for (Class<? extends Scripter> s : ssubTypesOf)
 		{
@@ -166,9 +618,8 @@ public class ResolverFactory
 				Scripter newInstance = s.newInstance();
 				for (String key : newInstance.getResolverNames())
 				{
-					scripterSpecs.put(key, s);
+					scripters.put(key, s);
 				}
-				scripters++;
 			}
 			catch (InstantiationException ex)
 			{
@@ -183,40 +634,253 @@ public class ResolverFactory
 
 			}
 		}
-		System.out.println(scripters + " Scripters.");
-		System.out.println("Free Memory - " + ((Runtime.getRuntime().freeMemory() / 1024) / 1024));
-		System.out.println("Total Memory - " + ((Runtime.getRuntime().totalMemory() / 1024) / 1024));
-		System.out.println("Max Memory - " + ((Runtime.getRuntime().maxMemory() / 1024) / 1024));
-		System.out.println("Available CPU - " + (Runtime.getRuntime().availableProcessors()));
 	}
 
-	private static Resolvable getCorrectResolver(String name) throws JSONException
+	/**
+	 * How to build the resolvable for one name: the constructor to call, and
+	 * whether the name is a function that the "execute" cruncher calls.
+	 */
+	private static final class Spec
+	{
+		final Constructor<? extends Resolvable> constructor;
+		final boolean execute;
+		// What the name was registered to when the spec was made.
+		final Class<? extends Cruncher> cruncher;
+		final Class<? extends Scripter> scripter;
+
+		Spec(Class<? extends Resolvable> c, boolean execute, Class<? extends Cruncher> cruncher, Class<? extends Scripter> scripter)
+		{
+			try
+			{
+				constructor = constructor(c);
+			}
+			catch (NoSuchMethodException e)
+			{
+				throw new RuntimeException(e);
+			}
+			this.execute = execute;
+			this.cruncher = cruncher;
+			this.scripter = scripter;
+		}
+
+		/**
+		 * @return true if the name still resolves to the same class. The
+		 *         registry maps are public and may be changed in place, so
+		 *         this is checked on every use of a map that is not a
+		 *         {@link SpecMap}.
+		 */
+		boolean isCurrent(String name)
+		{
+			Class<? extends Cruncher> c = cruncherSpecs.get(name);
+			if (c != cruncher)
+				return false;
+			if (c == null && scripterSpecs.get(name) != scripter)
+				return false;
+			return !execute || cruncherSpecs.get("execute") == constructor.getDeclaringClass();
+		}
+	}
+
+	private static final ConcurrentHashMap<Class<?>, Constructor<? extends Resolvable>> constructors = new ConcurrentHashMap<Class<?>, Constructor<? extends Resolvable>>();
+
+	/** @return the public no-argument constructor of a resolver class, looked up once per class. */
+	static Constructor<? extends Resolvable> constructor(Class<? extends Resolvable> c) throws NoSuchMethodException
+	{
+		Constructor<? extends Resolvable> constructor = constructors.get(c);
+		if (constructor == null)
+		{
+			constructor = c.getConstructor();
+			constructors.put(c, constructor);
+		}
+		return constructor;
+	}
+
+	/** Counts the changes to every {@link SpecMap}. */
+	private static final AtomicInteger generation = new AtomicInteger();
+
+	/**
+	 * A map of names to resolver classes that counts its changes, so specs
+	 * resolved against it are trusted until it changes instead of being
+	 * checked against it on every lookup. The factory fills its maps with
+	 * these; assign one to {@link #cruncherSpecs} or {@link #scripterSpecs} to
+	 * get the same. Taking a view of it counts as a change, as the view could
+	 * change it.
+	 */
+	public static class SpecMap<V> extends EwMap<String, V>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private static <T> T changed(T result)
+		{
+			generation.incrementAndGet();
+			return result;
+		}
+
+		@Override
+		public V put(String key, V value)
+		{
+			return changed(super.put(key, value));
+		}
+
+		@Override
+		public void putAll(Map<? extends String, ? extends V> m)
+		{
+			super.putAll(m);
+			changed(null);
+		}
+
+		@Override
+		public V remove(Object key)
+		{
+			return changed(super.remove(key));
+		}
+
+		@Override
+		public boolean remove(Object key, Object value)
+		{
+			return changed(super.remove(key, value));
+		}
+
+		@Override
+		public void clear()
+		{
+			super.clear();
+			changed(null);
+		}
+
+		@Override
+		public V putIfAbsent(String key, V value)
+		{
+			return changed(super.putIfAbsent(key, value));
+		}
+
+		@Override
+		public V replace(String key, V value)
+		{
+			return changed(super.replace(key, value));
+		}
+
+		@Override
+		public boolean replace(String key, V oldValue, V newValue)
+		{
+			return changed(super.replace(key, oldValue, newValue));
+		}
+
+		@Override
+		public void replaceAll(BiFunction<? super String, ? super V, ? extends V> function)
+		{
+			super.replaceAll(function);
+			changed(null);
+		}
+
+		@Override
+		public V computeIfAbsent(String key, Function<? super String, ? extends V> mappingFunction)
+		{
+			return changed(super.computeIfAbsent(key, mappingFunction));
+		}
+
+		@Override
+		public V computeIfPresent(String key, BiFunction<? super String, ? super V, ? extends V> remappingFunction)
+		{
+			return changed(super.computeIfPresent(key, remappingFunction));
+		}
+
+		@Override
+		public V compute(String key, BiFunction<? super String, ? super V, ? extends V> remappingFunction)
+		{
+			return changed(super.compute(key, remappingFunction));
+		}
+
+		@Override
+		public V merge(String key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction)
+		{
+			return changed(super.merge(key, value, remappingFunction));
+		}
+
+		@Override
+		public Set<String> keySet()
+		{
+			return changed(super.keySet());
+		}
+
+		@Override
+		public Collection<V> values()
+		{
+			return changed(super.values());
+		}
+
+		@Override
+		public Set<Map.Entry<String, V>> entrySet()
+		{
+			return changed(super.entrySet());
+		}
+	}
+
+	/** Specs by name, for the registry maps they were resolved against and the generation they were at. */
+	private static final class SpecCache
+	{
+		final Map<String, Class<? extends Cruncher>> crunchers;
+		final Map<String, Class<? extends Scripter>> scripters;
+		final int generation;
+		// Whether both maps count their changes, so the generation is all there is to check.
+		final boolean counted;
+		final ConcurrentHashMap<String, Spec> specs = new ConcurrentHashMap<String, Spec>();
+
+		SpecCache(Map<String, Class<? extends Cruncher>> crunchers, Map<String, Class<? extends Scripter>> scripters, int generation)
+		{
+			this.crunchers = crunchers;
+			this.scripters = scripters;
+			this.generation = generation;
+			this.counted = crunchers instanceof SpecMap && scripters instanceof SpecMap;
+		}
+	}
+
+	private static volatile SpecCache specCache = null;
+
+	private static Spec getSpec(String name)
 	{
 		if (cruncherSpecs == null)
 			populateFactorySpecsDynamically();
 
+		// Read before the maps, so a change made meanwhile is seen by the next lookup.
+		int g = generation.get();
+		SpecCache cache = specCache;
+		if (cache == null || cache.generation != g || cache.crunchers != cruncherSpecs || cache.scripters != scripterSpecs)
+			specCache = cache = new SpecCache(cruncherSpecs, scripterSpecs, g);
+		Spec spec = cache.specs.get(name);
+		if (spec != null && (cache.counted || spec.isCurrent(name)))
+			return spec;
+
 		Class<? extends Cruncher> c2 = cruncherSpecs.get(name);
 		Class<? extends Scripter> s = scripterSpecs.get(name);
+		if (c2 != null)
+			spec = new Spec(c2, false, c2, s);
+		else if (s != null)
+			spec = new Spec(s, false, null, s);
+		else
+		{
+			Class<? extends Cruncher> execute = cruncherSpecs.get("execute");
+			if (execute == null)
+				throw new RuntimeException("Neither cruncher nor function exist: " + name);
+			spec = new Spec(execute, true, null, null);
+		}
+		cache.specs.put(name, spec);
+		return spec;
+	}
 
+	private static Resolvable getCorrectResolver(String name) throws JSONException
+	{
+		Spec spec = getSpec(name);
 		try
 		{
-			if (c2 == null && s == null)
-			{
-				c2 = cruncherSpecs.get("execute");
-				if (c2 == null)
-					throw new RuntimeException("Neither cruncher nor function exist: "+name);
-				Cruncher cruncher = c2.newInstance();
-				cruncher.build("service", name);
-				return cruncher;
-			}
-
-			if (c2 == null && s == null)
-				throw new JSONException("Cannot resolve name: " + name);
-
-			if (c2 == null)
-				return s.newInstance();
-			else
-				return c2.newInstance();
+			Resolvable r = spec.constructor.newInstance();
+			if (spec.execute)
+				r.build("service", name);
+			return r;
+		}
+		catch (InvocationTargetException e)
+		{
+			e.getCause().printStackTrace();
+			throw new RuntimeException(e.getCause());
 		}
 		catch (InstantiationException e)
 		{
@@ -0,0 +1,145 @@
+package com.eduworks.resolver;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/*
+ * Annotation processor that lists every concrete Cruncher and Scripter a module compiles in
+ * META-INF/services/com.eduworks.resolver.Cruncher and META-INF/services/com.eduworks.resolver.Scripter, so
+ * ResolverFactory can find them with a ServiceLoader instead of scanning the classpath.
+ *
+ * It is registered in levr-core's META-INF/services, so javac runs it for any module compiled against
+ * levr-core; nothing needs to be annotated. Entries already in the output directory are kept, so incremental
+ * builds that only recompile some classes still produce a complete index.
+ */
+@SupportedAnnotationTypes("*")
+public class ResolverIndexProcessor extends AbstractProcessor
+{
+	// Names, not class literals, so the processor does not load the resolver classes into javac.
+	private static final String CRUNCHER = "com.eduworks.resolver.Cruncher";
+	private static final String SCRIPTER = "com.eduworks.resolver.Scripter";
+
+	private final Set<String> crunchers = new TreeSet<String>();
+	private final Set<String> scripters = new TreeSet<String>();
+
+	@Override
+	public SourceVersion getSupportedSourceVersion()
+	{
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv)
+	{
+		TypeElement cruncher = processingEnv.getElementUtils().getTypeElement(CRUNCHER);
+		TypeElement scripter = processingEnv.getElementUtils().getTypeElement(SCRIPTER);
+		if (cruncher == null || scripter == null)
+			return false;
+		for (TypeElement type : ElementFilter.typesIn(roundEnv.getRootElements()))
+			collect(type, cruncher.asType(), scripter.asType());
+		if (roundEnv.processingOver())
+		{
+			write(CRUNCHER, crunchers);
+			write(SCRIPTER, scripters);
+		}
+		return false;
+	}
+
+	private void collect(TypeElement type, TypeMirror cruncher, TypeMirror scripter)
+	{
+		if (isInstantiable(type))
+		{
+			TypeMirror t = processingEnv.getTypeUtils().erasure(type.asType());
+			String name = processingEnv.getElementUtils().getBinaryName(type).toString();
+			if (processingEnv.getTypeUtils().isSubtype(t, cruncher))
+				crunchers.add(name);
+			else if (processingEnv.getTypeUtils().isSubtype(t, scripter))
+				scripters.add(name);
+		}
+		for (TypeElement nested : ElementFilter.typesIn(type.getEnclosedElements()))
+			collect(nested, cruncher, scripter);
+	}
+
+	/** @return true if a ServiceLoader can create the type. */
+	private static boolean isInstantiable(TypeElement type)
+	{
+		if (type.getKind() != ElementKind.CLASS)
+			return false;
+		Set<Modifier> modifiers = type.getModifiers();
+		if (!modifiers.contains(Modifier.PUBLIC) || modifiers.contains(Modifier.ABSTRACT))
+			return false;
+		Element outer = type.getEnclosingElement();
+		if (outer.getKind().isClass() || outer.getKind().isInterface())
+			if (!modifiers.contains(Modifier.STATIC))
+				return false;
+		for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements()))
+			if (constructor.getParameters().isEmpty() && constructor.getModifiers().contains(Modifier.PUBLIC))
+				return true;
+		return false;
+	}
+
+	private void write(String service, Set<String> names)
+	{
+		String resource = "META-INF/services/" + service;
+		try
+		{
+			FileObject existing = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", resource);
+			BufferedReader reader = new BufferedReader(new InputStreamReader(existing.openInputStream(), "UTF-8"));
+			try
+			{
+				String line;
+				while ((line = reader.readLine()) != null)
+					if (!line.trim().isEmpty() && !line.trim().startsWith("#"))
+						names.add(line.trim());
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		catch (IOException e)
+		{
+			// Nothing from an earlier build.
+		}
+		if (names.isEmpty())
+			return;
+		try
+		{
+			FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", resource);
+			Writer writer = new OutputStreamWriter(file.openOutputStream(), "UTF-8");
+			try
+			{
+				for (String name : names)
+					writer.write(name + "\n");
+			}
+			finally
+			{
+				writer.close();
+			}
+		}
+		catch (IOException e)
+		{
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Cannot write " + resource + ": " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package com.eduworks.resolver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+/*
+ * Merges structurally identical Cruncher subtrees into one shared instance (hash-consing).
+ *
+ * The RS2 parser copies an identifier's definition into every place it is referenced, and each copy is
+ * built into its own cruncher. Crunchers are immutable once built, so identical copies can be replaced by
+ * the first one seen. Subtrees are interned bottom-up: two crunchers are identical when they are of the
+ * same class and have the same literals and the same (already shared) children under the same keys.
+ *
+ * Use one interner per load so that trees of every file loaded together are shared.
+ */
+public class ResolverInterner
+{
+	private final Map<List<Object>, Cruncher> bySignature = new HashMap<List<Object>, Cruncher>();
+	private final Map<Cruncher, Cruncher> canonical = new IdentityHashMap<Cruncher, Cruncher>();
+	private int merged = 0;
+
+	/** Identity of an already shared child within a signature. */
+	private static final class Same
+	{
+		final Object o;
+
+		Same(Object o)
+		{
+			this.o = o;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return System.identityHashCode(o);
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			return obj instanceof Same && ((Same) obj).o == o;
+		}
+	}
+
+	public synchronized Resolvable intern(Resolvable r) throws JSONException
+	{
+		return (Resolvable) internValue(r);
+	}
+
+	/** Number of crunchers replaced by a shared instance so far. */
+	public synchronized int getMerged()
+	{
+		return merged;
+	}
+
+	private Object internValue(Object o) throws JSONException
+	{
+		if (o instanceof Cruncher)
+			return internCruncher((Cruncher) o);
+		if (o instanceof Scripter)
+			internChildren(((Scripter) o).data);
+		else if (o instanceof JSONArray)
+		{
+			JSONArray array = (JSONArray) o;
+			for (int i = 0; i < array.length(); i++)
+			{
+				Object element = array.opt(i);
+				Object shared = internValue(element);
+				if (shared != element)
+					array.put(i, shared);
+			}
+		}
+		return o;
+	}
+
+	private Cruncher internCruncher(Cruncher c) throws JSONException
+	{
+		Cruncher known = canonical.get(c);
+		if (known != null)
+			return known;
+
+		if (internChildren(c.data))
+			c.link();
+
+		List<Object> signature = signature(c);
+		Cruncher shared = bySignature.get(signature);
+		if (shared == null)
+		{
+			bySignature.put(signature, c);
+			shared = c;
+		}
+		else
+			merged++;
+		canonical.put(c, shared);
+		return shared;
+	}
+
+	/** @return true if any child was replaced. */
+	private boolean internChildren(Map<String, Object> data) throws JSONException
+	{
+		if (data == null)
+			return false;
+		boolean changed = false;
+		for (Map.Entry<String, Object> e : data.entrySet())
+		{
+			Object value = e.getValue();
+			Object shared = internValue(value);
+			if (shared != value)
+			{
+				e.setValue(shared);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private static List<Object> signature(Cruncher c)
+	{
+		List<Object> signature = new ArrayList<Object>();
+		signature.add(c.getClass());
+		signature.add(c.resolverCompatibilityReplaceMode);
+		if (c.data != null)
+			for (Map.Entry<String, Object> e : new TreeMap<String, Object>(c.data).entrySet())
+			{
+				signature.add(e.getKey());
+				Object value = e.getValue();
+				if (value == null || value instanceof String || value instanceof Number || value instanceof Boolean)
+					signature.add(value);
+				else
+					signature.add(new Same(value));
+			}
+		return signature;
+	}
+}
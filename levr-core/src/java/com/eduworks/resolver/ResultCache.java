@@ -0,0 +1,318 @@
+package com.eduworks.resolver;
+
+import java.io.InputStream;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * Memoizes results of pure Cruncher subtrees (see Pure and the _memoize setting).
+ *
+ * Entries are keyed by the subtree's root cruncher plus the values of the "@param"s the subtree reads, so
+ * request bookkeeping such as ip, threadId and methodType does not split the cache. Concurrent misses on
+ * the same key wait for a single computation. JSON results are cached in serialized form and handed out
+ * as fresh copies, since callers are free to modify them. Other mutable results are not cached, and neither
+ * are results computed while the request was being aborted, which may be partial. A subtree that reads the
+ * data streams after all, which a Pure cruncher should not, is not memoized from then on.
+ *
+ * The cache is split in LRU segments. Size and time to live are set with -Dlevr.memo.size (default 10000)
+ * and -Dlevr.memo.ttl in milliseconds (default 60000).
+ */
+public class ResultCache
+{
+	private static final int SEGMENTS = 16;
+	private static final int maxSize = Integer.getInteger("levr.memo.size", 10000);
+	private static final long ttlMs = Long.getLong("levr.memo.ttl", 60000L);
+
+	private static final AtomicLong hits = new AtomicLong(0);
+	private static final AtomicLong misses = new AtomicLong(0);
+	private static final AtomicLong evictions = new AtomicLong(0);
+
+	/** Memoized crunchers found reading the data streams; they are no longer memoized. */
+	private static final Set<Cruncher> readsStreams = Collections.newSetFromMap(new ConcurrentHashMap<Cruncher, Boolean>());
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static final LinkedHashMap<Key, Entry>[] segments = new LinkedHashMap[SEGMENTS];
+
+	static
+	{
+		final int segmentSize = Math.max(1, maxSize / SEGMENTS);
+		for (int i = 0; i < SEGMENTS; i++)
+			segments[i] = new LinkedHashMap<Key, Entry>(16, 0.75f, true)
+			{
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest)
+				{
+					if (size() <= segmentSize)
+						return false;
+					evictions.incrementAndGet();
+					return true;
+				}
+			};
+	}
+
+	private static final class Key
+	{
+		final Cruncher node;
+		final String[][] values;
+		final int hash;
+
+		Key(Cruncher node, String[][] values)
+		{
+			this.node = node;
+			this.values = values;
+			this.hash = 31 * System.identityHashCode(node) + Arrays.deepHashCode(values);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return node == other.node && hash == other.hash && Arrays.deepEquals(values, other.values);
+		}
+	}
+
+	private static final class Entry
+	{
+		final FutureTask<Object> task;
+		final long expires;
+
+		Entry(FutureTask<Object> task, long expires)
+		{
+			this.task = task;
+			this.expires = expires;
+		}
+	}
+
+	/** Serialized JSON result, thawed into a new object on every hit. */
+	private static final class Frozen
+	{
+		final String json;
+		final boolean array;
+
+		Frozen(String json, boolean array)
+		{
+			this.json = json;
+			this.array = array;
+		}
+	}
+
+	/** A result that cannot be shared between callers. */
+	private static final class Unshareable
+	{
+		final Object result;
+
+		Unshareable(Object result)
+		{
+			this.result = result;
+		}
+	}
+
+	/** Data streams that remember whether they were looked at. */
+	private static final class WatchedStreams extends AbstractMap<String, InputStream>
+	{
+		final Map<String, InputStream> streams;
+		volatile boolean read = false;
+
+		WatchedStreams(Map<String, InputStream> streams)
+		{
+			this.streams = streams;
+		}
+
+		@Override
+		public InputStream get(Object key)
+		{
+			read = true;
+			return streams.get(key);
+		}
+
+		@Override
+		public boolean containsKey(Object key)
+		{
+			read = true;
+			return streams.containsKey(key);
+		}
+
+		@Override
+		public Set<Map.Entry<String, InputStream>> entrySet()
+		{
+			read = true;
+			return streams.entrySet();
+		}
+	}
+
+	static Object resolve(final Cruncher cruncher, final CruncherPlan plan, final Context c, final Map<String, String[]> parameters,
+			final Map<String, InputStream> dataStreams) throws JSONException
+	{
+		if (readsStreams.contains(cruncher))
+			return cruncher.compute(plan, c, parameters, dataStreams);
+
+		String[][] values = new String[plan.reads.length][];
+		for (int i = 0; i < values.length; i++)
+			values[i] = parameters == null ? null : parameters.get(plan.reads[i]);
+		Key key = new Key(cruncher, values);
+		LinkedHashMap<Key, Entry> segment = segments[(key.hash ^ (key.hash >>> 16)) & (SEGMENTS - 1)];
+
+		long now = System.currentTimeMillis();
+		Entry entry;
+		boolean owner = false;
+		synchronized (segment)
+		{
+			entry = segment.get(key);
+			if (entry != null && entry.expires < now)
+			{
+				segment.remove(key);
+				evictions.incrementAndGet();
+				entry = null;
+			}
+			if (entry == null)
+			{
+				entry = new Entry(new FutureTask<Object>(new Callable<Object>()
+				{
+					@Override
+					public Object call() throws Exception
+					{
+						WatchedStreams streams = dataStreams == null ? null : new WatchedStreams(dataStreams);
+						Object result = cruncher.compute(plan, c, parameters, streams);
+						if (streams != null && streams.read && readsStreams.add(cruncher))
+							Cruncher.log.warn("Not memoizing " + cruncher.getResolverName() + ": it reads the data streams, so it is not Pure.");
+						// Partial results of an aborted request, or results that depend on the request body, stay with this request.
+						if (c.shouldAbort() || (streams != null && streams.read))
+							return new Unshareable(result);
+						return freeze(result);
+					}
+				}), now + ttlMs);
+				segment.put(key, entry);
+				owner = true;
+			}
+		}
+
+		if (owner)
+		{
+			misses.incrementAndGet();
+			entry.task.run();
+		}
+		else
+			hits.incrementAndGet();
+
+		Object result;
+		try
+		{
+			result = entry.task.get();
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for " + cruncher.getResolverName(), ex);
+		}
+		catch (ExecutionException ex)
+		{
+			// Failures are not cached.
+			remove(segment, key, entry);
+			Throwable cause = ex.getCause();
+			if (cause instanceof JSONException)
+				throw (JSONException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new RuntimeException(cause);
+		}
+
+		if (result instanceof Unshareable)
+		{
+			remove(segment, key, entry);
+			if (owner)
+				return ((Unshareable) result).result;
+			return cruncher.compute(plan, c, parameters, dataStreams);
+		}
+		return thaw(result);
+	}
+
+	private static void remove(LinkedHashMap<Key, Entry> segment, Key key, Entry entry)
+	{
+		synchronized (segment)
+		{
+			if (segment.get(key) == entry)
+				segment.remove(key);
+		}
+	}
+
+	private static Object freeze(Object result)
+	{
+		if (result == null || result instanceof String || result instanceof Number || result instanceof Boolean || result == JSONObject.NULL)
+			return result;
+		if (result instanceof JSONObject)
+			return new Frozen(result.toString(), false);
+		if (result instanceof JSONArray)
+			return new Frozen(result.toString(), true);
+		return new Unshareable(result);
+	}
+
+	private static Object thaw(Object result) throws JSONException
+	{
+		if (!(result instanceof Frozen))
+			return result;
+		Frozen frozen = (Frozen) result;
+		if (frozen.array)
+			return new JSONArray(frozen.json);
+		return new JSONObject(frozen.json);
+	}
+
+	public static long getHits()
+	{
+		return hits.get();
+	}
+
+	public static long getMisses()
+	{
+		return misses.get();
+	}
+
+	public static long getEvictions()
+	{
+		return evictions.get();
+	}
+
+	public static int size()
+	{
+		int size = 0;
+		for (LinkedHashMap<Key, Entry> segment : segments)
+			synchronized (segment)
+			{
+				size += segment.size();
+			}
+		return size;
+	}
+
+	public static void clear()
+	{
+		for (LinkedHashMap<Key, Entry> segment : segments)
+			synchronized (segment)
+			{
+				segment.clear();
+			}
+	}
+}
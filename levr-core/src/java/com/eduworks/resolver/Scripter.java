@@ -4,7 +4,6 @@ import java.io.InputStream;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
@@ -113,12 +112,8 @@ public abstract class Scripter implements Resolvable {
 
 	public Object resolve(String key, Context c, Map<String, String[]> parameters, Map<String, InputStream> dataStreams) throws JSONException {
 		try {
-			JSONObject functionPack = new JSONObject();
-			functionPack.put("function", key);
-			Set<Entry<String, String[]>> parameterSet = parameters.entrySet();
-			for (Entry<String, String[]> parameter : parameterSet)
-				functionPack.put(parameter.getKey(), parameter.getValue());
-			Object o = ResolverFactory.create(functionPack);
+			// Built per call with the parameters as its values, since crunchers may read their keys raw.
+			Object o = ResolverFactory.create(key, parameters);
 			if (o instanceof Cruncher) {
 				Cruncher cruncher = (Cruncher) o;
 				cruncher.resolve(c, parameters, dataStreams);
@@ -23,6 +23,16 @@ public class LevrResolverV2Parser
 	public static Logger	log	= Logger.getLogger(LevrResolverParser.class);
 
 	public static Tuple<Map<String, JSONObject>,Map<String, JSONObject>> decodeStreams(File fileToDecode) throws JSONException
+	{
+		return decodeStreams(fileToDecode, null);
+	}
+
+	/**
+	 * @param lines
+	 *            if not null, receives the line each service ('/') and
+	 *            function ('#') is declared on
+	 */
+	public static Tuple<Map<String, JSONObject>,Map<String, JSONObject>> decodeStreams(File fileToDecode, Map<String, Integer> lines) throws JSONException
 	{
 		FileInputStream input = null;
 		try
@@ -43,6 +53,8 @@ public class LevrResolverV2Parser
 			log.debug(new TreeSet<String>(rp.servlets.keySet()));
 			if (rp.functions.size() > 0)
 				log.debug(new TreeSet<String>(rp.functions.keySet()));
+			if (lines != null)
+				lines.putAll(rp.lines);
 				
 			return new Tuple<Map<String, JSONObject>,Map<String, JSONObject>>(rp.servlets,rp.functions);
 		}
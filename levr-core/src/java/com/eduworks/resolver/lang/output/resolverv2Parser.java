@@ -68,6 +68,7 @@ public class resolverv2Parser extends Parser {
     	public EwMap<String,JSONObject> ids = new EwMap<String,JSONObject>();
     	public EwMap<String,JSONObject> servlets = new EwMap<String,JSONObject>();
     	public EwMap<String,JSONObject> functions = new EwMap<String,JSONObject>();
+    	public EwMap<String,Integer> lines = new EwMap<String,Integer>();
     	public JSONObject obj = new EwJsonObject();
     	public Stack<JSONObject> stk = new Stack<JSONObject>();
 
@@ -479,7 +480,7 @@ public class resolverv2Parser extends Parser {
                     }
 
                     i=(Token)match(input,ID,FOLLOW_ID_in_decl678); 
-                    servlets.put(s.getText(),ids.get(i.getText()));
+                    servlets.put(s.getText(),ids.get(i.getText()));lines.put(s.getText(),s.getLine());
 
                     }
                     break;
@@ -525,7 +526,7 @@ public class resolverv2Parser extends Parser {
                     }
 
                     i=(Token)match(input,ID,FOLLOW_ID_in_decl701); 
-                    servlets.put(s.getText(),ids.get(i.getText()));
+                    servlets.put(s.getText(),ids.get(i.getText()));lines.put(s.getText(),s.getLine());
 
                     }
                     break;
@@ -571,7 +572,7 @@ public class resolverv2Parser extends Parser {
                     }
 
                     i=(Token)match(input,ID,FOLLOW_ID_in_decl724); 
-                    functions.put(s.getText(),ids.get(i.getText()));
+                    functions.put(s.getText(),ids.get(i.getText()));lines.put(s.getText(),s.getLine());
 
                     }
                     break;
@@ -617,7 +618,7 @@ public class resolverv2Parser extends Parser {
                     }
 
                     i=(Token)match(input,ID,FOLLOW_ID_in_decl746); 
-                    functions.put(s.getText(),ids.get(i.getText()));
+                    functions.put(s.getText(),ids.get(i.getText()));lines.put(s.getText(),s.getLine());
 
                     }
                     break;
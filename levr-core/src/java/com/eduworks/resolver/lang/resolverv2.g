@@ -20,6 +20,7 @@ package com.eduworks.resolver.lang.output;
 	public EwMap<String,JSONObject> ids = new EwMap<String,JSONObject>();
 	public EwMap<String,JSONObject> servlets = new EwMap<String,JSONObject>();
 	public EwMap<String,JSONObject> functions = new EwMap<String,JSONObject>();
+	public EwMap<String,Integer> lines = new EwMap<String,Integer>();
 	public JSONObject obj = new EwJsonObject();
 	public Stack<JSONObject> stk = new Stack<JSONObject>();
 }
@@ -89,10 +90,10 @@ decl
 		)
 	|	x=ID WS?'='WS? y=ID 				{obj=ids.get(y.getText());}
 		dotfunctioncall?				{ids.put(x.getText(),obj);obj = new EwJsonObject();}
-	|	s=SERVLETID WS? ' ->' WS? i=ID			{servlets.put(s.getText(),ids.get(i.getText()));}
-	|	s=SERVLETID WS? '=' WS? i=ID			{servlets.put(s.getText(),ids.get(i.getText()));}
-	|	s=FUNCTIONID WS? ' ->' WS? i=ID			{functions.put(s.getText(),ids.get(i.getText()));}
-	|	s=FUNCTIONID WS? '=' WS? i=ID			{functions.put(s.getText(),ids.get(i.getText()));}
+	|	s=SERVLETID WS? ' ->' WS? i=ID			{servlets.put(s.getText(),ids.get(i.getText()));lines.put(s.getText(),s.getLine());}
+	|	s=SERVLETID WS? '=' WS? i=ID			{servlets.put(s.getText(),ids.get(i.getText()));lines.put(s.getText(),s.getLine());}
+	|	s=FUNCTIONID WS? ' ->' WS? i=ID			{functions.put(s.getText(),ids.get(i.getText()));lines.put(s.getText(),s.getLine());}
+	|	s=FUNCTIONID WS? '=' WS? i=ID			{functions.put(s.getText(),ids.get(i.getText()));lines.put(s.getText(),s.getLine());}
 	;
 
 